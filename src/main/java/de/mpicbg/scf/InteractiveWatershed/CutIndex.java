@@ -0,0 +1,274 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import java.util.Arrays;
+
+
+
+/**
+ * Label roots of the cut of an H-tree, updated incrementally when the cut moves. A node is above the cut of hMin 
+ * if its criteria and the criteria of all its ancestors are above hMin, i.e. if its open level (the min of the 
+ * criteria on the path to the root) is above hMin. The label roots are the nodes below the cut whose parent is 
+ * above it, or which are roots of the tree. Moving the cut only visits the current label roots and the nodes 
+ * that cross the cut, the rest of the tree is not touched. The label roots added and removed and the nodes 
+ * that went above the cut during the last move are recorded, so that a labeling can be updated incrementally.
+ * This requires all the leaves to be below the cut, the label roots of a lower cut (negative hMin) are found by 
+ * a scan of the nodes and the changes are then not recorded.
+ */
+class CutIndex {
+	
+	private final Tree tree;
+	private final double[] criteria;
+	private final double[] openLevel; // min of the criteria of the node and of its ancestors
+	private final int[] roots; // label roots of the current cut in roots[0 .. nRoots-1]
+	private final int[] rootPos; // position of a node in roots, -1 if it is not a label root
+	private final int[] visited; // stamp of the last cut move that climbed through a node
+	private double leafLevel = Double.NEGATIVE_INFINITY; // all the leaves are below the cut for hMin >= leafLevel
+	private int[] stack = new int[64];
+	private final IntList added = new IntList(); // changes of the last move of the cut
+	private final IntList removed = new IntList();
+	private final IntList opened = new IntList();
+	private int nRoots = 0;
+	private int nMoves = 0;
+	private double cut = Double.POSITIVE_INFINITY;
+	
+	
+	CutIndex(Tree tree, double[] criteria)
+	{
+		final int nNodes = criteria.length;
+		this.tree = tree;
+		this.criteria = criteria;
+		openLevel = new double[nNodes];
+		for( int node : tree.getBreadthFirstOrder() )
+		{
+			final int parent = tree.getParent(node);
+			openLevel[node] = parent == node ? criteria[node] : Math.min(criteria[node], openLevel[parent]);
+			if( tree.isLeaf(node) )
+				leafLevel = Math.max(leafLevel, openLevel[node]);
+		}
+		
+		// with an infinite cut the label roots are the roots of the tree
+		roots = new int[nNodes];
+		rootPos = new int[nNodes];
+		visited = new int[nNodes];
+		Arrays.fill(rootPos, -1);
+		for( int root : tree.getRootIds() )
+			addRoot(root);
+	}
+	
+	
+	/**
+	 * move the cut to hMin (not NaN)
+	 * @return true if the changes of the label roots were recorded, false if they were found by a scan of the nodes
+	 */
+	boolean setCut(double hMin)
+	{
+		added.size = 0;
+		removed.size = 0;
+		opened.size = 0;
+		if( hMin == cut )
+			return true;
+		final boolean raise = hMin > cut;
+		final boolean scan = hMin < leafLevel || cut < leafLevel;
+		cut = hMin;
+		nMoves++;
+		
+		if( scan )
+		{
+			while( nRoots > 0 )
+				removeRoot( roots[nRoots-1] );
+			for( int node=0; node<criteria.length; node++)
+			{
+				final int parent = tree.getParent(node);
+				if( criteria[node] <= cut  &&  ( parent == node || openLevel[parent] > cut ) )
+					addRoot(node);
+			}
+			added.size = 0;
+			removed.size = 0;
+			return false;
+		}
+		
+		// the roots added while moving the cut are appended and are valid label roots of the new cut,
+		// the current roots are visited from the end so that a removal only swaps in an already visited root
+		for( int k=nRoots-1; k>=0; k--)
+		{
+			final int node = roots[k];
+			if( raise )
+				raise(node);
+			else
+				lower(node);
+		}
+		return true;
+	}
+	
+	
+	// the cut is raised: if the parent of the label root is now below the cut, the new label root is its
+	// highest ancestor below the cut. The ancestors climbed by a previous root are not climbed again.
+	private void raise(int node)
+	{
+		int parent = tree.getParent(node);
+		if( parent == node  ||  openLevel[parent] > cut )
+			return;
+		removeRoot(node);
+		while( visited[parent] != nMoves )
+		{
+			visited[parent] = nMoves;
+			final int grandParent = tree.getParent(parent);
+			if( grandParent == parent  ||  openLevel[grandParent] > cut ) {
+				addRoot(parent);
+				return;
+			}
+			parent = grandParent;
+		}
+	}
+	
+	
+	// the cut is lowered: if the label root is now above the cut, its descendants that are below the cut and
+	// whose parent is above it become label roots
+	private void lower(int node)
+	{
+		if( criteria[node] <= cut )
+			return;
+		removeRoot(node);
+		int size = 0;
+		stack[size++] = node;
+		while( size > 0 )
+		{
+			final int open = stack[--size];
+			opened.add(open);
+			for( int k=0; k<tree.getNumChildren(open); k++)
+			{
+				final int child = tree.getChild(open, k);
+				if( criteria[child] <= cut )
+					addRoot(child);
+				else {
+					if( size == stack.length )
+						stack = Arrays.copyOf(stack, 2*size);
+					stack[size++] = child;
+				}
+			}
+		}
+	}
+	
+	
+	int getNumRoots()
+	{
+		return nRoots;
+	}
+	
+	
+	/**
+	 * @return the k-th label root of the current cut, 0 <= k < getNumRoots(), the roots are in no particular order
+	 */
+	int getRoot(int k)
+	{
+		return roots[k];
+	}
+	
+	
+	int getNumAdded()
+	{
+		return added.size;
+	}
+	
+	
+	/**
+	 * @return the k-th label root added by the last move of the cut
+	 */
+	int getAdded(int k)
+	{
+		return added.values[k];
+	}
+	
+	
+	int getNumRemoved()
+	{
+		return removed.size;
+	}
+	
+	
+	/**
+	 * @return the k-th label root removed by the last move of the cut
+	 */
+	int getRemoved(int k)
+	{
+		return removed.values[k];
+	}
+	
+	
+	int getNumOpened()
+	{
+		return opened.size;
+	}
+	
+	
+	/**
+	 * @return the k-th node that went above the cut during the last move of the cut
+	 */
+	int getOpened(int k)
+	{
+		return opened.values[k];
+	}
+	
+	
+	private void addRoot(int node)
+	{
+		if( rootPos[node] >= 0 )
+			return;
+		rootPos[node] = nRoots;
+		roots[nRoots++] = node;
+		added.add(node);
+	}
+	
+	
+	private void removeRoot(int node)
+	{
+		final int last = roots[--nRoots];
+		roots[ rootPos[node] ] = last;
+		rootPos[last] = rootPos[node];
+		rootPos[node] = -1;
+		removed.add(node);
+	}
+	
+	
+	private static class IntList
+	{
+		int[] values = new int[64];
+		int size = 0;
+		
+		void add(int value)
+		{
+			if( size == values.length )
+				values = Arrays.copyOf(values, 2*size);
+			values[size++] = value;
+		}
+	}
+	
+}
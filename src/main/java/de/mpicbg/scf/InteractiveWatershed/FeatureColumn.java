@@ -0,0 +1,123 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+/**
+ * Values of a node feature of a Tree, one value per node id.
+ * The values are stored either in a double array or in a float array. The float storage halves 
+ * the memory of the feature at the cost of rounding its values to single precision.
+ */
+public abstract class FeatureColumn {
+	
+	public enum Storage
+	{
+		DOUBLE,
+		FLOAT;
+	}
+	
+	
+	/**
+	 * @param values values of the feature, a double column keeps that array as its storage
+	 * @param storage storage type of the column
+	 * @return a column holding values
+	 */
+	public static FeatureColumn create(double[] values, Storage storage)
+	{
+		if( storage == Storage.FLOAT )
+			return new FloatColumn(values);
+		return new DoubleColumn(values);
+	}
+	
+	
+	public abstract Storage getStorage();
+	
+	public abstract int size();
+	
+	public abstract double get(int node);
+	
+	public abstract void set(int node, double value);
+	
+	/**
+	 * @return the values as a double array, for a double column this is the storage array itself 
+	 * and modifying it modifies the column, for a float column it is a copy
+	 */
+	public abstract double[] toDoubleArray();
+	
+	
+	
+	static class DoubleColumn extends FeatureColumn
+	{
+		private final double[] values;
+		
+		DoubleColumn(double[] values)
+		{
+			this.values = values;
+		}
+		
+		public Storage getStorage() { return Storage.DOUBLE; }
+		
+		public int size() { return values.length; }
+		
+		public double get(int node) { return values[node]; }
+		
+		public void set(int node, double value) { values[node] = value; }
+		
+		public double[] toDoubleArray() { return values; }
+	}
+	
+	
+	
+	static class FloatColumn extends FeatureColumn
+	{
+		private final float[] values;
+		
+		FloatColumn(double[] values)
+		{
+			this.values = new float[values.length];
+			for( int i=0; i<values.length; i++)
+				this.values[i] = (float) values[i];
+		}
+		
+		public Storage getStorage() { return Storage.FLOAT; }
+		
+		public int size() { return values.length; }
+		
+		public double get(int node) { return values[node]; }
+		
+		public void set(int node, double value) { values[node] = (float) value; }
+		
+		public double[] toDoubleArray()
+		{
+			final double[] array = new double[values.length];
+			for( int i=0; i<values.length; i++)
+				array[i] = values[i];
+			return array;
+		}
+	}
+	
+}
@@ -0,0 +1,135 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+
+
+/**
+ * A predicate on the nodes of a Tree, true for the nodes whose features lie in given ranges.
+ * It filters the segments of a tree labeling on any feature column, for instance to drop the segments 
+ * smaller than a minimum area or with a low mean intensity, without revisiting the image:
+ * <pre>
+ *   FeatureFilter filter = new FeatureFilter(tree).withRange("area", 50, Double.POSITIVE_INFINITY)
+ *                                                 .withRatioRange("sum", "area", 20, Double.POSITIVE_INFINITY);
+ * </pre>
+ * The bounds are included, NaN bounds are ignored.
+ * The node attributes (area, sum, ...) are features of trees built with HWatershedLabeling.setComputeNodeAttributes(true).
+ * A filter is immutable: adding a range returns a new filter and the feature values are copied when the range
+ * is added, so a filter gives the same result for the whole labeling session it is used in.
+ */
+public final class FeatureFilter implements IntPredicate {
+	
+	private final Tree tree;
+	private final double[][] values; // values[i][node] is the value tested by range i, a feature or a ratio of features
+	private final double[] min;
+	private final double[] max;
+	
+	
+	public FeatureFilter(Tree tree)
+	{
+		this(tree, new double[0][], new double[0], new double[0]);
+	}
+	
+	
+	private FeatureFilter(Tree tree, double[][] values, double[] min, double[] max)
+	{
+		this.tree = tree;
+		this.values = values;
+		this.min = min;
+		this.max = max;
+	}
+	
+	
+	/**
+	 * @return a new filter keeping the nodes kept by this filter with min <= feature <= max
+	 */
+	public FeatureFilter withRange(String feature, double min, double max)
+	{
+		final FeatureColumn column = getColumn(feature);
+		final double[] value = new double[ tree.getNumNodes() ];
+		for( int node=0; node<value.length; node++)
+			value[node] = column.get(node);
+		return with(value, min, max);
+	}
+	
+	
+	/**
+	 * @return a new filter keeping the nodes kept by this filter with min <= numerator/denominator <= max, 
+	 * e.g. the mean intensity sum/area
+	 */
+	public FeatureFilter withRatioRange(String numerator, String denominator, double min, double max)
+	{
+		final FeatureColumn numeratorColumn = getColumn(numerator);
+		final FeatureColumn denominatorColumn = getColumn(denominator);
+		final double[] value = new double[ tree.getNumNodes() ];
+		for( int node=0; node<value.length; node++)
+			value[node] = numeratorColumn.get(node) / denominatorColumn.get(node);
+		return with(value, min, max);
+	}
+	
+	
+	// the values of the existing ranges are shared, they are never modified
+	private FeatureFilter with(double[] value, double min, double max)
+	{
+		final int n = values.length;
+		final double[][] newValues = Arrays.copyOf(values, n+1);
+		final double[] newMin = Arrays.copyOf(this.min, n+1);
+		final double[] newMax = Arrays.copyOf(this.max, n+1);
+		newValues[n] = value;
+		newMin[n] = min;
+		newMax[n] = max;
+		return new FeatureFilter(tree, newValues, newMin, newMax);
+	}
+	
+	
+	private FeatureColumn getColumn(String feature)
+	{
+		final FeatureColumn column = tree.getFeatureColumn(feature);
+		if( column == null )
+			throw new IllegalArgumentException("FeatureFilter: the tree has no feature "+feature);
+		return column;
+	}
+	
+	
+	@Override
+	public boolean test(int node)
+	{
+		for( int i=0; i<values.length; i++)
+		{
+			final double value = values[i][node];
+			if( value < min[i] || value > max[i] )
+				return false;
+		}
+		return true;
+	}
+	
+}
@@ -1,10 +1,7 @@
 package de.mpicbg.scf.InteractiveWatershed;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
-
-import de.mpicbg.scf.InteractiveWatershed.Tree.Node;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
 
 
 
@@ -37,184 +34,323 @@ public class HTreeLabeling {
 
 	private void initialize()
 	{
-		this.dyn = tree.getFeature("dynamics");
-		this.Imax = tree.getFeature("Imax");
+		// the tie breaking below modifies the features, work on copies so that the tree is left untouched
+		this.dyn = tree.getFeature("dynamics").clone();
+		this.Imax = tree.getFeature("Imax").clone();
 		
 		
-		Queue<Node> Q = new LinkedList<Node>();
-		Q.addAll( tree.getRoots() );
+		this.nNodes = Imax.length;
 		double epsilon = 0.000000001;
-		while( ! Q.isEmpty() ) {
-			Node node = Q.poll();
-			if( ! Tree.isLeaf(node) ) {
-				final Node c0 = node.getChildren().get(0);
-				final Node c1 = node.getChildren().get(1);
-				final int c0Id = c0.getId();
-				final int c1Id = c1.getId();
+		for( int node : tree.getBreadthFirstOrder() ) {
+			if( ! tree.isLeaf(node) ) {
+				final int c0Id = tree.getChild(node, 0);
+				final int c1Id = tree.getChild(node, 1);
 				if(Imax[c0Id]==Imax[c1Id]) {
 					Imax[c1Id] -= epsilon;
 					dyn[c1Id] -= epsilon;
 				}
-				Q.add(c0);
-				Q.add(c1);	
 			}
 		}
 		
-		this.nNodes = Imax.length;
 		this.Imin = new double[ nNodes ];
 		for( int i=0; i<nNodes; i++) {
 			Imin[i] = Imax[i]-dyn[i];
 		}
 		
 		this.criteria = new double[nNodes];
-		for( Node node : tree.getNodes().values() )
+		for( int node=0; node<nNodes; node++ )
 		{
-			if( Tree.isLeaf(node) )
-				criteria[node.getId()] = 0;
+			if( tree.isLeaf(node) )
+				criteria[node] = 0;
 			else {
-				final int c0 = node.getChildren().get(0).getId();
-				final int c1 = node.getChildren().get(1).getId();
-				criteria[node.getId()] = Math.min( dyn[c0], dyn[c1]);
+				final int c0 = tree.getChild(node, 0);
+				final int c1 = tree.getChild(node, 1);
+				criteria[node] = Math.min( dyn[c0], dyn[c1]);
 			}
 		}
 		
-		
-		
-		
 		initialized = true;
 	}
 	
 	
+	/**
+	 * @return a new labeling session, see Session
+	 */
+	public Session newSession()
+	{
+		return new Session();
+	}
+	
+	
 	public int getLabeling( double hMin, double threshold, double peakFlooding, boolean keepOrphanPeak, int[] nodeIdToLabel, int[] nodeIdToLabelRoot, double[] thresholds )
 	{
+		return getLabeling(hMin, threshold, peakFlooding, keepOrphanPeak, null, nodeIdToLabel, nodeIdToLabelRoot, thresholds);
+	}
+	
+	
+	/**
+	 * Same as getLabeling without filter, the segments whose label root fails the filter are set to 0 with their
+	 * whole subtree, including the orphan peaks they contain. The filter is tested on the label root nodes only, 
+	 * during the same sweep of the tree. The node features describe the full region of the node, not the part of
+	 * it above the threshold.
+	 * Each call labels the whole tree, use a Session to update the previous labeling when only hMin changes.
+	 * @param nodeFilter a predicate on the node ids, see FeatureFilter, null to keep all the segments
+	 */
+	public int getLabeling( double hMin, double threshold, double peakFlooding, boolean keepOrphanPeak, IntPredicate nodeFilter, int[] nodeIdToLabel, int[] nodeIdToLabelRoot, double[] thresholds )
+	{
+		return newSession().getLabeling(hMin, threshold, peakFlooding, keepOrphanPeak, nodeFilter, nodeIdToLabel, nodeIdToLabelRoot, thresholds);
+	}
+	
+	
+	
+	/**
+	 * The labeling state of one caller. A labeling with the same parameters as the previous labeling of the session 
+	 * but hMin is obtained by updating it: only the nodes whose label root changed are labeled again and the labels
+	 * are renumbered in O(nLabels log nLabels), the rest of the tree is not visited.
+	 * A session is not thread safe, each thread must use its own session. The HTreeLabeling itself is not 
+	 * modified by the sessions and can be shared between threads.
+	 */
+	public class Session
+	{
+		private final CutIndex cutIndex; // label roots of the cut of the last labeling
 		
-		peakFlooding = Math.max(0, peakFlooding);
-		peakFlooding = Math.min(100, peakFlooding);
-		peakFlooding = peakFlooding/100d;
-		
-		// initialize nodes local threshold 
-		for( int i=0; i<nNodes; i++) {
-			thresholds[i] = threshold + ( Imax[i]-threshold ) * ( 1-peakFlooding );
-		}
+		// state of the last labeling
+		private final int[] labelRoot; // label root of each node, 0 if the node is not labeled
+		private final int[] labelCount; // for a label root of the cut, the number of labels in its segment (orphan peaks included)
+		private final int[] labelNodes; // nodes that are their own label root, node 0 excepted, in labelNodes[0 .. nLabelNodes-1]
+		private final int[] labelPos; // position of a node in labelNodes, -1 if it is not a label node
+		private final int[] labelOf; // for a label node, its label in [1, nLabelNodes], labelOf[0] = 0
+		private final double[] peakThreshold; // for a label node, its local threshold
+		private int nLabelNodes = 0;
+		private int nLabels;
+		private boolean isLabeled = false;
+		private double lastThreshold;
+		private double lastPeakFlooding;
+		private boolean lastKeepOrphanPeak;
+		private IntPredicate lastNodeFilter;
 		
 		
-		// initialize the tree exploration by inserting roots in a Queue
-		Queue<Node> queue = new LinkedList<Node>();
-		for(Node node : tree.getRoots()){
-			node.labelRoot = node.getId();
-			queue.add(node);
-			
+		Session()
+		{
+			cutIndex = new CutIndex(tree, criteria);
+			// the getters accept node 0 even if the tree is empty
+			labelRoot = new int[ Math.max(1, nNodes) ];
+			labelCount = new int[nNodes];
+			labelNodes = new int[nNodes];
+			labelPos = new int[nNodes];
+			labelOf = new int[ Math.max(1, nNodes) ];
+			peakThreshold = new double[ Math.max(1, nNodes) ];
+			Arrays.fill(labelPos, -1);
 		}
 		
-		// breadth first search till we find the root of the cut tree (all nodes above the cut value don't mater anymore)
-		//	 - a node i is active if crit[i]<hMin and Imax[i]>threshold
-		 
-		int label=0;
-		Queue<Node> queueA = new LinkedList<Node>();
-		while( ! queue.isEmpty() )
+		
+		/**
+		 * Same as HTreeLabeling.getLabeling, the previous labeling of the session is updated when only hMin changed.
+		 * The filter is compared by reference: a FeatureFilter is immutable, any other predicate must give the same 
+		 * result for a node as long as it is passed, pass a new predicate otherwise.
+		 * The labeling of the segments is incremental but the outputs are written for all the nodes, use label() 
+		 * and the getters to read only the nodes needed.
+		 */
+		public int getLabeling( double hMin, double threshold, double peakFlooding, boolean keepOrphanPeak, IntPredicate nodeFilter, int[] nodeIdToLabel, int[] nodeIdToLabelRoot, double[] thresholds )
 		{
-			final Node node = queue.poll();
-			final int nodeId = node.getId();
-			if( criteria[nodeId] <= hMin ) {
-					node.labelRoot = nodeId;
-					label++;
-					node.finalLabel = label; 
-					queueA.add(node);
+			label(hMin, threshold, peakFlooding, keepOrphanPeak, nodeFilter);
+			
+			for( int nodeId=0; nodeId<nNodes; nodeId++ )
+			{
+				nodeIdToLabelRoot[nodeId] = labelRoot[nodeId];
+				nodeIdToLabel[nodeId] = labelOf[ labelRoot[nodeId] ];
+				thresholds[nodeId] = getNodeThreshold(nodeId);
 			}
-			else {
-				node.labelRoot = 0;
-				node.finalLabel = 0;
-				for(Node childNode : node.getChildren() )
-					queue.add( childNode );
+			if( nNodes > 0 ) {
+				nodeIdToLabel[0] = 0;
+				nodeIdToLabelRoot[0] = 0;
 			}
+			
+			return nLabels;
 		}
 		
-	
-		
 		
-		while( ! queueA.isEmpty() )
+		/**
+		 * Label the tree, the result is read with getLabel, getLabelRoot and getPeakThreshold. The previous labeling
+		 * of the session is updated when only hMin changed, see getLabeling.
+		 * @return the number of labels
+		 */
+		public int label( double hMin, double threshold, double peakFlooding, boolean keepOrphanPeak, IntPredicate nodeFilter )
 		{
-			final Node node = queueA.poll();
 			
-			int nodeId = node.getId();
-			double Imin_node = Imin[nodeId];
-			double Imax_node = Imax[nodeId];
+			peakFlooding = Math.max(0, peakFlooding);
+			peakFlooding = Math.min(100, peakFlooding);
+			peakFlooding = peakFlooding/100d;
 			
-			if( node.labelRoot == 0 ) {
-				// do nothing
-			}
-			else if ( Imax_node < threshold  ) {
-				node.labelRoot = 0;
-				node.finalLabel = 0;
-			}
-			else if( threshold > Imin_node   &&  Imax[node.labelRoot]>Imax[nodeId]  ) {
-				if( keepOrphanPeak ){
-					node.labelRoot = nodeId;
-					label++;
-					node.finalLabel = label; 
-				}
-				else {
-					node.labelRoot = 0;
-					node.finalLabel = 0; 
-				}
+			if( hMin != hMin ) // NaN, only the roots of the tree are label roots
+				hMin = Double.POSITIVE_INFINITY;
+			
+			// the cut index gives the label roots of the cut (criteria[i] <= hMin for the node and > hMin for all its 
+			// ancestors), the nodes above the cut are not labeled. If only hMin changed since the last labeling, only the 
+			// segments of the label roots added by the move of the cut are labeled again, the others are unchanged
+			final boolean isUpdate = cutIndex.setCut(hMin) && isLabeled  &&  threshold == lastThreshold
+					&&  peakFlooding == lastPeakFlooding  &&  keepOrphanPeak == lastKeepOrphanPeak  &&  nodeFilter == lastNodeFilter;
+			if( isUpdate )
+			{
+				for( int k=0; k<cutIndex.getNumRemoved(); k++ )
+					nLabels -= labelCount[ cutIndex.getRemoved(k) ];
+				for( int k=0; k<cutIndex.getNumOpened(); k++ )
+					setLabelRoot( cutIndex.getOpened(k), 0);
+				for( int k=0; k<cutIndex.getNumAdded(); k++ )
+					nLabels += labelSegment( cutIndex.getAdded(k), threshold, keepOrphanPeak, nodeFilter);
 			}
-			else if( threshold <= Imin_node){
-				if(thresholds[node.labelRoot] > Imin_node  && Imax[node.labelRoot]>Imax[nodeId]) {
-					if( keepOrphanPeak ){
-						node.labelRoot = nodeId;
-						label++;
-						node.finalLabel = label; 
-					}
-					else {
-						node.labelRoot = 0;
-						node.finalLabel = 0; 
-					}
-				}
+			else
+			{
+				Arrays.fill(labelRoot, 0);
+				for( int k=0; k<nLabelNodes; k++ )
+					labelPos[ labelNodes[k] ] = -1;
+				nLabelNodes = 0;
+				isLabeled = true;
+				lastThreshold = threshold;
+				lastPeakFlooding = peakFlooding;
+				lastKeepOrphanPeak = keepOrphanPeak;
+				lastNodeFilter = nodeFilter;
+				nLabels = 0;
+				for( int k=0; k<cutIndex.getNumRoots(); k++ )
+					nLabels += labelSegment( cutIndex.getRoot(k), threshold, keepOrphanPeak, nodeFilter);
 			}
-			//else { // do nothing }
 			
-			for( Node child : node.getChildren() )
+			// the labels fill the range [1, nLabel] in the order of the label node ids
+			Arrays.sort(labelNodes, 0, nLabelNodes);
+			for( int k=0; k<nLabelNodes; k++ )
 			{
-				child.labelRoot = node.labelRoot;
-				child.finalLabel = node.finalLabel;
-				queueA.add(child);
+				final int node = labelNodes[k];
+				labelPos[node] = k;
+				labelOf[node] = k+1;
+				peakThreshold[node] = getNodeThreshold(node);
 			}
 			
+			return nLabels;
 		}
 		
 		
-//		for( Node node : tree.getNodes().values() )
-//		{
-//			final int nodeId = node.getId();
-//			nodeIdToLabel[nodeId] = node.finalLabel;
-//		}
+		/**
+		 * @return the label of a node in the last labeling, 0 if the node is not labeled
+		 */
+		public int getLabel( int nodeId )
+		{
+			return labelOf[ labelRoot[nodeId] ];
+		}
+		
 		
-		// from the tree labeling determine label continuously filling the range [1, nLabel]
-		int currentLabel = 0;
-		for( Node node : tree.getNodes().values() )
+		/**
+		 * @return the label root of a node in the last labeling, 0 if the node is not labeled
+		 */
+		public int getLabelRoot( int nodeId )
 		{
-				final int nodeId = node.getId();
-				if ( nodeId == node.labelRoot && node.labelRoot>0) {
-					currentLabel++;
-					nodeIdToLabel[nodeId] = currentLabel;
-					nodeIdToLabelRoot[nodeId] = node.labelRoot;
-				}
+			return labelRoot[nodeId];
 		}
 		
-		for( Node node : tree.getNodes().values() )
+		
+		/**
+		 * @return the local threshold of the label root of a labeled node, the pixels of the node below it are not labeled  
+		 */
+		public double getPeakThreshold( int nodeId )
 		{
-				final int nodeId = node.getId();
-				nodeIdToLabel[nodeId] = nodeIdToLabel[node.labelRoot];
-				nodeIdToLabelRoot[nodeId] = node.labelRoot;
+			return peakThreshold[ labelRoot[nodeId] ];
+		}
+		
+		
+		// local threshold of a node for the parameters of the last labeling
+		private double getNodeThreshold( int nodeId )
+		{
+			return lastThreshold + ( Imax[nodeId]-lastThreshold ) * ( 1-lastPeakFlooding );
 		}
-		nodeIdToLabel[0] = 0; // just to be sure
-		nodeIdToLabelRoot[0] = 0;
 		
-
 		
-		return label;
+		// set the label root of a node and keep the set of label nodes up to date
+		private void setLabelRoot( int nodeId, int root )
+		{
+			labelRoot[nodeId] = root;
+			if( nodeId == 0 )
+				return;
+			if( root == nodeId ) {
+				if( labelPos[nodeId] < 0 ) {
+					labelPos[nodeId] = nLabelNodes;
+					labelNodes[nLabelNodes++] = nodeId;
+				}
+			}
+			else if( labelPos[nodeId] >= 0 ) {
+				final int last = labelNodes[--nLabelNodes];
+				labelNodes[ labelPos[nodeId] ] = last;
+				labelPos[last] = labelPos[nodeId];
+				labelPos[nodeId] = -1;
+			}
+		}
+		
+		
+		// label the subtree of a label root of the cut, in pre-order a parent is labeled before its children
+		//	 - a node i is active if crit[i]<hMin and Imax[i]>threshold
+		// return the number of labels created in the subtree, which is also stored in labelCount[cutRoot]
+		private int labelSegment( int cutRoot, double threshold, boolean keepOrphanPeak, IntPredicate nodeFilter )
+		{
+			final int[] preOrder = tree.getPreOrder();
+			final int start = tree.getPreOrderIndex(cutRoot);
+			final int end = start + tree.getSubtreeSize(cutRoot);
+		
+			int label=0;
+			if( nodeFilter != null && !nodeFilter.test(cutRoot) ) {
+				for( int i=start; i<end; i++ )
+					setLabelRoot( preOrder[i], 0);
+				labelCount[cutRoot] = 0;
+				return 0;
+			}
+		
+			for( int i=start; i<end; i++ )
+			{
+				final int nodeId = preOrder[i];
+				int root;
+				if( i == start ) {
+					root = nodeId;
+					label++;
+				}
+				else
+					root = labelRoot[ tree.getParent(nodeId) ];
+			
+				double Imin_node = Imin[nodeId];
+				double Imax_node = Imax[nodeId];
+			
+				if( root == 0 ) {
+					// do nothing
+				}
+				else if ( Imax_node < threshold  ) {
+					root = 0;
+				}
+				else if( threshold > Imin_node   &&  Imax[root]>Imax[nodeId]  ) {
+					if( keepOrphanPeak && ( nodeFilter == null || nodeFilter.test(nodeId) ) ){
+						root = nodeId;
+						label++;
+					}
+					else {
+						root = 0;
+					}
+				}
+				else if( threshold <= Imin_node){
+					if(getNodeThreshold(root) > Imin_node  && Imax[root]>Imax[nodeId]) {
+						if( keepOrphanPeak && ( nodeFilter == null || nodeFilter.test(nodeId) ) ){
+							root = nodeId;
+							label++;
+						}
+						else {
+							root = 0;
+						}
+					}
+				}
+				//else { // do nothing }
+				setLabelRoot(nodeId, root);
+			}
+		
+			labelCount[cutRoot] = label;
+			return label;
+		}
 	}
 	
+	
 	// threshold correction 
 	//	T_node = T + (Imax_node-T).(1-a)
 	// there is an a, a_, such that T_root_a_ = Imax_node - h_node
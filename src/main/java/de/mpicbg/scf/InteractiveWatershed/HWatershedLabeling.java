@@ -26,22 +26,33 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 */
 
 
-import de.mpicbg.scf.InteractiveWatershed.HierarchicalFIFO;
+import java.util.Arrays;
+
+import de.mpicbg.scf.InteractiveWatershed.HierarchicalBucketFIFO;
+import de.mpicbg.scf.InteractiveWatershed.HierarchicalLongBucketFIFO;
 import de.mpicbg.scf.InteractiveWatershed.Tree;
 
-import de.mpicbg.scf.InteractiveWatershed.imgTools.LocalMaximaLabeling;
 import de.mpicbg.scf.InteractiveWatershed.imgTools.ImageConnectivity;
-import de.mpicbg.scf.InteractiveWatershed.imgTools.ProgressDialog;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.LongList;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.PagedLongArray;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.ParallelLoop;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.ProgressListener;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.UnsignedIntegerReader;
 
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
-import net.imglib2.algorithm.stats.ComputeMinMax;
-import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.type.BooleanType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 
@@ -67,7 +78,7 @@ public class HWatershedLabeling<T extends RealType<T>> {
 	//
 	// Input: I
 	// Output: Label (i.e. I), Parent, Hcriteria
-	// algo will discretize value
+	// algo floods the rank of the values among the distinct values of I, features are measured on the values
 	//
 	// I_localMin = local_minima(I)
 	// Imin = min(I); Imax = max(I)
@@ -131,35 +142,156 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		}
 	}
 	
+	
+	/**
+	 * MAXIMA builds the tree of the bright peaks of the input, MINIMA the tree of its dark basins.
+	 * A MINIMA tree is the max tree of the negated input: the values are negated as they are read, 
+	 * so the levels, the intensity features and the threshold of the flooding are expressed on -input.  
+	 */
+	public enum Polarity
+	{
+		MAXIMA(1),
+		MINIMA(-1);
+		
+		float sign;
+		
+		Polarity(float sign)
+		{
+			this.sign = sign;
+		}
+		
+		/**
+		 * @return the sign applied to the input values, 1 for MAXIMA and -1 for MINIMA
+		 */
+		public float getSign()
+		{
+			return sign;
+		}
+	}
+	
 	private Img<IntType> labelMapMaxTree;
+	private float[] levelValues; // sorted distinct values of the input above threshold, before flooding labelMapMaxTree contains the rank of the pixel values in that array
+	private float minValue; // max(threshold, min(input)), the base of the flooding
 	private float threshold;
 	private Connectivity connectivity;
+	private Polarity polarity;
 	private boolean maxTreeIsBuilt=false;
 	private Tree maxTree;
 	private boolean  wasCancelled=false;
+	private ImgFactory<IntType> labelMapFactory;
+	private Interval cropInterval; // interval of the input covered by labelMapMaxTree
+	private long[] fullDimensions; // dimensions of the input
+	private Img<IntType> fullLabelMap; // labelMapMaxTree embedded in an image the size of the input, created on demand
+	private FeatureColumn.Storage featureStorage = FeatureColumn.Storage.DOUBLE; // storage of the tree features
+	private boolean computeNodeAttributes = false;
+	private ProgressListener progress = ProgressListener.NONE;
+	
+	// tree construction arrays, only used while the tree is built
+	private int[] parent;
+	private int[] children; // the children of node i are children[2*i] and children[2*i+1], -1 if none
+	private double[] hCriteria;
+	private double[] Imax;
+	private NodeAttributes attributes; // null if the node attributes are not computed
+	private int newNode;
+	// during the flooding the label map stores for each pixel: its level if it is not queued, -1 (min-1) if it is below 
+	// threshold, -1-L if it is queued with leaf L and -1-L-DEQUEUED once it is dequeued. Node numbers stay below DEQUEUED-1. 
+	private static final int DEQUEUED = 1 << 30;
+	private static final int VISITED = Integer.MIN_VALUE; // marks the pixels explored by the discovery of the regional maxima
+	// the discovery of the regional maxima flags a pixel queued with leaf L with levelValues.length+L, L<=DEQUEUED-2
+	private static final int MAX_LEVELS = Integer.MAX_VALUE - (DEQUEUED-2);
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	private static final int BLOCK_SIZE = 4096; // number of pixels read at once from 8 and 16 bit inputs
+	private static final long PROGRESS_MASK = (1 << 16) - 1; // the progress is reported every 2^16 processed pixels
+	private long[] leafMaxIdx; // for a leaf, the index of the last pixel of its regional maximum, -1 for the other nodes
+	private PagedLongArray candidates; // pixels with no higher neighbor, sorted by level and by index
+	private long[] candidateStart; // the candidates at level l are in [candidateStart[l], candidateStart[l+1])
+	private int[] rootCacheParent; // union-find of the nodes, see findRootCached
+	private byte[] rootCacheRank;
+	private int[] rootCacheRoot; // for a set representative, the root of the set in the tree under construction
 	
 	
 	public HWatershedLabeling(Img<T> input, float threshold, Connectivity connectivity)
+	{
+		this(input, null, threshold, connectivity);
+	}
+	
+	
+	/**
+	 * Constructor restricting the flooding to a mask. The pixels outside the mask are handled like the pixels 
+	 * below threshold: they are never queued and their label is 0. The tree is the one of the image cropped 
+	 * to the mask, in particular the base of the flooding is the minimum of the input inside the mask.
+	 * 
+	 * @param mask a binary image the size of input, if null the whole input is flooded
+	 */
+	public HWatershedLabeling(Img<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold, Connectivity connectivity)
+	{
+		this(input, mask, threshold, connectivity, Polarity.MAXIMA);
+	}
+	
+	
+	/**
+	 * Constructor choosing the polarity of the tree. With Polarity.MINIMA the dark regions of the input are 
+	 * flooded from their minimum and the pixels above threshold are ignored, the input is not copied.
+	 * 
+	 * @param mask a binary image the size of input, if null the whole input is flooded
+	 * @param threshold with MINIMA, only the pixels below or equal to threshold are flooded
+	 * @param polarity MAXIMA for bright objects, MINIMA for dark objects
+	 */
+	public HWatershedLabeling(Img<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold, Connectivity connectivity, Polarity polarity)
+	{
+		// an ArrayImg label map is flooded directly on its storage array, a CellImg is used for larger images 
+		this(input, mask, threshold, connectivity, polarity, Util.getArrayOrCellImgFactory( input, new IntType() ));
+	}
+	
+	
+	// labelMapFactory is the factory of the label map, package private so that tests can force a CellImg label map 
+	HWatershedLabeling(Img<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold, Connectivity connectivity, Polarity polarity, ImgFactory<IntType> labelMapFactory)
 	{
 		int nDims = input.numDimensions();
-		long[] dims = new long[nDims];
-		input.dimensions(dims);
-		ImgFactory<IntType> imgFactoryIntType=null;
-		try {
-			imgFactoryIntType = input.factory().imgFactory( new IntType() );
-		} catch (IncompatibleTypeException e) {
-			e.printStackTrace();
-		}
+		ImgFactory<IntType> imgFactoryIntType = labelMapFactory;
+		this.labelMapFactory = labelMapFactory;
+		this.polarity = polarity;
+		
+		// from here on the values and the threshold are those of sign*input 
+		threshold = polarity.getSign() * threshold;
+		
+		if( mask != null && !Intervals.equalDimensions(input, mask) )
+			throw new IllegalArgumentException("HWatershed: the mask and the input image must have the same dimensions");
 		
 		if ( imgFactoryIntType != null )
 		{
-			this.labelMapMaxTree = imgFactoryIntType.create(dims, new IntType(0));
-			Cursor<IntType> c_label = labelMapMaxTree.cursor();
-			Cursor<T>       c_input = input.cursor();
-			while( c_input.hasNext() )
+			// crop the flooding to the bounding box of the pixels above threshold and inside the mask, 
+			// the pixels outside of it would be at level -1 like the pixels out of the image bounds
+			this.fullDimensions = Intervals.dimensionsAsLongArray(input);
+			this.cropInterval = new FinalInterval(input);
+			float inputMin = Float.NaN;
+			if( threshold > Float.NEGATIVE_INFINITY || mask != null )
+			{
+				final float[] inputMinOut = new float[1];
+				final long[][] bbox = getBoundingBox(input, mask, threshold, polarity.getSign(), inputMinOut);
+				inputMin = inputMinOut[0];
+				this.cropInterval = bbox==null ? new FinalInterval(new long[nDims], new long[nDims]) : new FinalInterval(bbox[0], bbox[1]);
+			}
+			
+			RandomAccessibleInterval<T> cropInput = input;
+			RandomAccessibleInterval<? extends BooleanType<?>> cropMask = mask;
+			if( isCropped() )
 			{
-				c_label.next().setInteger( (int) c_input.next().getRealFloat() );
+				cropInput = Views.zeroMin( Views.interval(input, cropInterval) );
+				if( mask != null )
+					cropMask = Views.zeroMin( Views.interval(mask, cropInterval) );
 			}
+			
+			this.labelMapMaxTree = imgFactoryIntType.create(Intervals.dimensionsAsLongArray(cropInterval), new IntType(0));
+			
+			if( UnsignedIntegerReader.isSupported(cropInput) )
+				initIntegerLevels(cropInput, cropMask, threshold);
+			else
+				initLevels(cropInput, cropMask, threshold);
+			
+			// the minimum of the input inside the mask may lie outside of the crop
+			if( !Float.isNaN(inputMin) )
+				this.minValue = Math.max(threshold, inputMin);
 		}
 		
 		this.threshold = threshold;
@@ -168,248 +300,406 @@ public class HWatershedLabeling<T extends RealType<T>> {
 	
 	
 	
-	// getter ...
-	
-	public Tree getTree() {
-		createMaxTree2();
-		return maxTree;
-	}
-
-	public Img<IntType> getLabelMapMaxTree() {
-		createMaxTree2();
-		return labelMapMaxTree;
-	}
-
-
-	@Deprecated
-	protected void createMaxTree()
+	// set levelValues and minValue and write the level of each pixel in the label map, 
+	// pixels outside the mask are ignored and get level -1
+	private void initLevels(RandomAccessibleInterval<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold)
 	{
-		if ( maxTreeIsBuilt )
-			return;
-		
-		IntType Tmin = labelMapMaxTree.randomAccess().get().createVariable();
-		IntType Tmax = Tmin.createVariable();		
-		ComputeMinMax.computeMinMax(labelMapMaxTree, Tmin, Tmax);
-		float min = Math.max(threshold, Tmin.getRealFloat());
-		float max = Tmax.getRealFloat();
-		
-		// get local maxima
-		LocalMaximaLabeling maxLabeler = new LocalMaximaLabeling();
-		Img<IntType> seed = maxLabeler.LocalMaxima(labelMapMaxTree,min);	
-		IntType TnSeeds = new IntType(0);
-		IntType Tdummy = new IntType(0);
-		ComputeMinMax.computeMinMax(seed, Tdummy, TnSeeds);
-		int nLeaves = (int) TnSeeds.getRealFloat();
-		
-		// debug
-		//labelMapDebug = seed;
-		// debug
-		
-		// create a priority queue
-		HierarchicalFIFO Q = new HierarchicalFIFO( (int)min, (int)max);
+		// collect the distinct values of the input above threshold, their ranks define the flooding levels
+		// each chunk of pixels is indexed in parallel then the chunk indexes are merged. The hash set of an index 
+		// costs up to 11 bytes per distinct value, when there are more distinct values than a quarter of the pixels 
+		// (typically float data) a sorted copy of the values is cheaper and the levels are obtained that way
+		final long nPixels = Intervals.numElements(input);
+		final int nChunks = ParallelLoop.getNumChunks( nPixels );
+		final float sign = polarity.getSign();
+		final boolean canSort = nPixels <= MAX_ARRAY_SIZE;
+		final LevelIndex[] chunkLevelIndex = new LevelIndex[nChunks];
+		final float[] chunkMin = new float[nChunks];
+		ParallelLoop.run( nPixels, nChunks, (chunk, start, end) -> 
+		{
+			LevelIndex chunkIndex = new LevelIndex( canSort ? (end-start)/4 : Long.MAX_VALUE );
+			float inputMin = Float.POSITIVE_INFINITY;
+			Cursor<T> c_input = Views.flatIterable( input ).cursor();
+			c_input.jumpFwd(start);
+			Cursor<? extends BooleanType<?>> c_mask = getMaskCursor(mask, start);
+			for( long i=start; i<end; i++)
+			{
+				final float val = sign * c_input.next().getRealFloat();
+				if( c_mask != null && !c_mask.next().get() )
+					continue;
+				if( val < inputMin )
+					inputMin = val;
+				if( val >= threshold )
+					chunkIndex.add(val);
+			}
+			chunkLevelIndex[chunk] = chunkIndex;
+			chunkMin[chunk] = inputMin;
+		});
 		
-		int ndim = labelMapMaxTree.numDimensions();
-		long[] dimensions = new long[ndim]; labelMapMaxTree.dimensions(dimensions);
+		final LevelIndex levelIndex = new LevelIndex( canSort ? nPixels/4 : Long.MAX_VALUE );
+		float inputMin = Float.POSITIVE_INFINITY;
+		for( int i=0; i<nChunks; i++)
+		{
+			levelIndex.addAll( chunkLevelIndex[i] );
+			chunkLevelIndex[i] = null;
+			inputMin = Math.min( inputMin, chunkMin[i] );
+		}
+		this.levelValues = levelIndex.isFull() ? sortLevels(input, mask, threshold, nChunks) : levelIndex.getLevels();
+		checkLevelCount( levelValues.length );
+		this.minValue = Math.max(threshold, inputMin);
 		
-		// create a flat iterable cursor
-		long[] minInt = new long[ ndim ], maxInt = new long[ ndim ];
-		for ( int d = 0; d < ndim; ++d ){   minInt[ d ] = 0 ;    maxInt[ d ] = dimensions[d] - 1 ;  }
-		FinalInterval interval = new FinalInterval( minInt, maxInt );
-		final Cursor< IntType > input_cursor = Views.flatIterable( Views.interval( labelMapMaxTree, interval)).cursor();
-		final Cursor< IntType > seed_cursor = Views.flatIterable( Views.interval( seed, interval)).cursor();
+		// the work image stores the level of each pixel, pixels below threshold are at level -1
+		// rk: -0 is added to 0 to avoid having two levels for 0 and -0
+		final float[] levels = levelValues;
+		ParallelLoop.run( nPixels, nChunks, (chunk, start, end) -> 
+		{
+			Cursor<IntType> c_label = Views.flatIterable( labelMapMaxTree ).cursor();
+			Cursor<T>       c_input = Views.flatIterable( input ).cursor();
+			c_label.jumpFwd(start);
+			c_input.jumpFwd(start);
+			Cursor<? extends BooleanType<?>> c_mask = getMaskCursor(mask, start);
+			for( long i=start; i<end; i++)
+			{
+				final float val = sign * c_input.next().getRealFloat();
+				final boolean inMask = c_mask == null || c_mask.next().get();
+				c_label.next().setInteger( val >= threshold && inMask ? Arrays.binarySearch(levels, val + 0f) : -1 );
+			}
+		});
+	}
+	
+	
+	// sorted distinct values of the input above threshold and inside the mask, obtained by sorting a copy
+	// of these values, for inputs with fewer than 2^31 pixels
+	private float[] sortLevels(RandomAccessibleInterval<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold, int nChunks)
+	{
+		final long nPixels = Intervals.numElements(input);
+		final float sign = polarity.getSign();
+		final float[] values = new float[ (int)nPixels ];
+		final int[] chunkStart = new int[nChunks];
+		final int[] chunkCount = new int[nChunks];
+		ParallelLoop.run( nPixels, nChunks, (chunk, start, end) -> 
+		{
+			Cursor<T> c_input = Views.flatIterable( input ).cursor();
+			c_input.jumpFwd(start);
+			Cursor<? extends BooleanType<?>> c_mask = getMaskCursor(mask, start);
+			int count = (int)start;
+			for( long i=start; i<end; i++)
+			{
+				final float val = sign * c_input.next().getRealFloat();
+				final boolean inMask = c_mask == null || c_mask.next().get();
+				if( val >= threshold && inMask )
+					values[count++] = val + 0f;
+			}
+			chunkStart[chunk] = (int)start;
+			chunkCount[chunk] = count - (int)start;
+		});
 		
-		double[] hCriteria = new double[2*nLeaves];
-		double[] Imax = new double[2*nLeaves];
-		int[] parent = new int[2*nLeaves];
-		int[][] children = new int[2*nLeaves][];
-		for(int i=0; i<hCriteria.length; i++)
+		// the values of each chunk start at the first pixel of the chunk, move them to the front
+		int nValues = 0;
+		for( int chunk=0; chunk<nChunks; chunk++)
 		{
-			children[i] = new int[] {-1,-1};
-			parent[i]=i;
-			hCriteria[i]=0;
-			Imax[i]=0;
+			System.arraycopy(values, chunkStart[chunk], values, nValues, chunkCount[chunk]);
+			nValues += chunkCount[chunk];
 		}
-		// fill the queue
-		int idx=-1;
-		while( input_cursor.hasNext() )
+		Arrays.parallelSort(values, 0, nValues);
+		int nLevels = 0;
+		for( int i=0; i<nValues; i++)
+			if( nLevels==0 || values[i] != values[nLevels-1] )
+				values[nLevels++] = values[i];
+		return Arrays.copyOf(values, nLevels);
+	}
+	
+	
+	// same as initLevels for 8 and 16 bit inputs: the levels are given by a table over all the values of the pixel type
+	// and the pixels are read as int, from the storage arrays of the input when possible
+	private void initIntegerLevels(RandomAccessibleInterval<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold)
+	{
+		final long nPixels = Intervals.numElements(input);
+		final int nChunks = ParallelLoop.getNumChunks( nPixels );
+		final int nValues = UnsignedIntegerReader.getNumValues(input);
+		
+		// flag the values present in each chunk of pixels
+		final boolean[][] chunkPresent = new boolean[nChunks][];
+		ParallelLoop.run( nPixels, nChunks, (chunk, start, end) -> 
 		{
-			++idx;
-			IntType pInput = input_cursor.next();
-			float pVal = pInput.getRealFloat();
-			float valSeed = seed_cursor.next().getRealFloat(); 
-			if ( pVal>=min)
+			final boolean[] present = new boolean[nValues];
+			final UnsignedIntegerReader reader = new UnsignedIntegerReader(input, start);
+			final int[] values = new int[BLOCK_SIZE];
+			Cursor<? extends BooleanType<?>> c_mask = getMaskCursor(mask, start);
+			for( long i=start; i<end; i+=BLOCK_SIZE)
 			{
-				if ( valSeed>0)
-				{
-					Q.add( idx, (int)pVal );
-					pInput.setReal(min-1-valSeed);
-					Imax[(int)valSeed]= pVal;
+				final int n = (int)Math.min(BLOCK_SIZE, end-i);
+				reader.read(values, n);
+				if( c_mask == null ) {
+					for( int j=0; j<n; j++)
+						present[ values[j] ] = true;
+				}
+				else {
+					for( int j=0; j<n; j++)
+						if( c_mask.next().get() )
+							present[ values[j] ] = true;
 				}
 			}
-			else
+			chunkPresent[chunk] = present;
+		});
+		
+		// the level of each value above threshold is its rank among the values present in the input
+		// with MINIMA the values are visited in decreasing order so that the levels increase with -v
+		final float sign = polarity.getSign();
+		final int[] valueToLevel = new int[nValues];
+		final float[] levels = new float[nValues];
+		float inputMin = Float.POSITIVE_INFINITY;
+		int nLevels = 0;
+		for( int i=0; i<nValues; i++)
+		{
+			final int v = sign > 0 ? i : nValues-1-i;
+			final float val = v == 0 ? 0 : sign * v; // no -0, as in the float path
+			boolean isPresent = false;
+			for( int c=0; c<nChunks && !isPresent; c++)
+				isPresent = chunkPresent[c][v];
+			if( isPresent && val < inputMin )
+				inputMin = val;
+			if( isPresent && val >= threshold )
 			{
-				pInput.setReal(min-1);
+				levels[nLevels] = val;
+				valueToLevel[v] = nLevels++;
 			}
+			else
+				valueToLevel[v] = -1;
 		}
+		this.levelValues = Arrays.copyOf(levels, nLevels);
+		checkLevelCount( levelValues.length );
+		this.minValue = Math.max(threshold, inputMin);
 		
-		
-		// extend input and seeds to to deal with out of bound
-		IntType outOfBoundT = labelMapMaxTree.firstElement().createVariable(); 
-		outOfBoundT.setReal(min-1);
-		RandomAccess< IntType > input_XRA = Views.extendValue(labelMapMaxTree, outOfBoundT ).randomAccess();
-		RandomAccess< IntType > input_XRA2 = input_XRA.copyRandomAccess();
-		
-		// define the connectivity
-		long[][] neigh = ImageConnectivity.getConnectivityPos(ndim, connectivity.getConn() );
-		int[] n_offset = ImageConnectivity.getIdxOffsetToCenterPix(neigh, dimensions);
-		long[][] dPosList = ImageConnectivity.getSuccessiveMove(neigh);
-		int nNeigh = n_offset.length;
-		
-		
-		boolean[] isDequeued = new boolean[(int)labelMapMaxTree.size()];
-		for (int i=0; i<isDequeued.length; i++)
-			isDequeued[i]=false;
-			
-		int maxLabel = nLeaves;
-		while( Q.HasNext() )
-		{ 	
-			
-			final int pIdx = (int) Q.Next(); 
-			final int pVal = Q.getCurrent_level() + Q.getMin();
-			
-			final long[] posCurrent = new long[ndim];
-			getPosFromIdx((long)pIdx, posCurrent, dimensions);
-			input_XRA.setPosition(posCurrent);
-			IntType p = input_XRA.get();
-			int pLabel = (int)(min - 1 - p.getRealFloat());
-			
-			isDequeued[pIdx]=true;
-			
-			
-			// relabel p if its parent changed (peaks was fused) since initially labeled
-			int pLabel_parent = (int)parent[pLabel];
-			while (pLabel_parent!=pLabel)  // find the root of plabel and relabel p according to it (rk: the root necessarily has highest value than p )
+		// the work image stores the level of each pixel, pixels below threshold are at level -1
+		ParallelLoop.run( nPixels, nChunks, (chunk, start, end) -> 
+		{
+			final UnsignedIntegerReader reader = new UnsignedIntegerReader(input, start);
+			final int[] values = new int[BLOCK_SIZE];
+			Cursor<IntType> c_label = Views.flatIterable( labelMapMaxTree ).cursor();
+			c_label.jumpFwd(start);
+			Cursor<? extends BooleanType<?>> c_mask = getMaskCursor(mask, start);
+			for( long i=start; i<end; i+=BLOCK_SIZE)
 			{
-				pLabel = (int)pLabel_parent;
-				pLabel_parent=parent[pLabel];
+				final int n = (int)Math.min(BLOCK_SIZE, end-i);
+				reader.read(values, n);
+				for( int j=0; j<n; j++)
+				{
+					final boolean inMask = c_mask == null || c_mask.next().get();
+					c_label.next().set( inMask ? valueToLevel[ values[j] ] : -1 );
+				}
 			}
-			p.setReal(min-1-pLabel);
-			
-			
-			// loop on neighbors			
-			input_XRA2.setPosition(posCurrent);
-			for( int i=0; i<nNeigh; i++)
+		});
+	}
+	
+	
+	// bounding box {min, max} of the pixels of sign*input above threshold and inside the mask, null if there is none
+	// inputMin[0] receives the minimum of sign*input inside the mask
+	private static <T extends RealType<T>> long[][] getBoundingBox(Img<T> input, RandomAccessibleInterval<? extends BooleanType<?>> mask, float threshold, float sign, float[] inputMin)
+	{
+		final int nDims = input.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray(input);
+		final long nPixels = input.size();
+		final int nChunks = ParallelLoop.getNumChunks( nPixels );
+		final long[][] chunkBBMin = new long[nChunks][];
+		final long[][] chunkBBMax = new long[nChunks][];
+		final float[] chunkMin = new float[nChunks];
+		ParallelLoop.run( nPixels, nChunks, (chunk, start, end) -> 
+		{
+			final long[] bbMin = new long[nDims];
+			final long[] bbMax = new long[nDims];
+			Arrays.fill(bbMin, Long.MAX_VALUE);
+			Arrays.fill(bbMax, -1);
+			float minVal = Float.POSITIVE_INFINITY;
+			Cursor<T> c_input = Views.flatIterable( input ).cursor();
+			c_input.jumpFwd(start);
+			Cursor<? extends BooleanType<?>> c_mask = getMaskCursor(mask, start);
+			// x is the position along the first dimension, the other coordinates are only updated once per line
+			long x = start % dims[0];
+			long line = start / dims[0];
+			long lastLine = -1;
+			for( long i=start; i<end; i++)
 			{
-				final int nIdx = pIdx + n_offset[i];
-				
-				input_XRA2.move(dPosList[i]);
-				final IntType n = input_XRA2.get();
-				final float nVal = n.getRealFloat();
-				
-				if ( nVal != (min-1) ) // if n is in-bound
+				final float val = sign * c_input.next().getRealFloat();
+				if( c_mask == null || c_mask.next().get() )
 				{
-					if( isDequeued[nIdx] ) // p is the lowest point 
-					{	
-						int nLabel = (int)(min - 1 - nVal);
-						int nLabel_parent = parent[ nLabel ];
-						while (nLabel_parent!=nLabel) // find the root of nLabel
+					if( val < minVal )
+						minVal = val;
+					if( val >= threshold )
+					{
+						if( x < bbMin[0] )
+							bbMin[0] = x;
+						if( x > bbMax[0] )
+							bbMax[0] = x;
+						if( line != lastLine )
 						{
-							nLabel = nLabel_parent;
-							nLabel_parent=parent[nLabel];
-						}
-						if( nLabel != pLabel ) // 2 distincts label roots are meeting and p is the saddle : initialize a new peak a new label and measure peaks height
-						{						
-												 
-							maxLabel++;
-							hCriteria[nLabel] = Imax[nLabel]-pVal; 
-							parent[nLabel]= maxLabel;
-							hCriteria[pLabel] = Imax[pLabel]-pVal;
-							parent[pLabel]= maxLabel;
-							children[maxLabel][0]= nLabel;
-							children[maxLabel][1]= pLabel;
-							
-							Imax[maxLabel]= Math.max(Imax[pLabel], Imax[nLabel]);
-							pLabel = maxLabel;
-
-							hCriteria[maxLabel] = Imax[maxLabel]-pVal;
-							p.setReal(min-1-pLabel);
+							lastLine = line;
+							long l = line;
+							for( int d=1; d<nDims; d++)
+							{
+								final long pos = l % dims[d];
+								l /= dims[d];
+								bbMin[d] = Math.min(bbMin[d], pos);
+								bbMax[d] = Math.max(bbMax[d], pos);
+							}
 						}
 					}
-					
-					if ( nVal>=min ) // is not queued yet and is in bound?
-					{
-						Q.add( nIdx, (int)nVal );
-						n.setReal(min -1 - pLabel);
-					}
 				}
-				
-				
-			} // end loop on neighbor
-			
-		} // end while
+				if( ++x == dims[0] )
+				{
+					x = 0;
+					line++;
+				}
+			}
+			chunkBBMin[chunk] = bbMin;
+			chunkBBMax[chunk] = bbMax;
+			chunkMin[chunk] = minVal;
+		});
 		
-		// for root nodes adjust there height to Imax(rootLabel)-min. 
-		for(int i=0 ; i<parent.length; i++)
+		final long[] bbMin = chunkBBMin[0];
+		final long[] bbMax = chunkBBMax[0];
+		inputMin[0] = chunkMin[0];
+		for( int i=1; i<nChunks; i++)
 		{
-			if( hCriteria[i]>0 & parent[i]==i)
+			for( int d=0; d<nDims; d++)
 			{
-				hCriteria[i] = Imax[i]-min;
+				bbMin[d] = Math.min(bbMin[d], chunkBBMin[i][d]);
+				bbMax[d] = Math.max(bbMax[d], chunkBBMax[i][d]);
 			}
+			inputMin[0] = Math.min( inputMin[0], chunkMin[i] );
 		}
+		if( bbMax[0] < 0 )
+			return null;
+		return new long[][] {bbMin, bbMax};
+	}
+	
+	
+	// cursor on the mask in flat iteration order positioned before pixel start, null if there is no mask
+	private static Cursor<? extends BooleanType<?>> getMaskCursor(RandomAccessibleInterval<? extends BooleanType<?>> mask, long start)
+	{
+		if( mask == null )
+			return null;
+		Cursor<? extends BooleanType<?>> c_mask = Views.flatIterable( mask ).cursor();
+		c_mask.jumpFwd(start);
+		return c_mask;
+	}
+	
+	
+	
+	// getter ...
+	
+	public Tree getTree() {
+		createMaxTree2();
+		return maxTree;
+	}
+
+	/**
+	 * @return the label map of the tree leaves, the size of the input image. 
+	 * If the flooding was cropped, the cropped label map is copied in a new image, see getCroppedLabelMap
+	 */
+	public Img<IntType> getLabelMapMaxTree() {
+		createMaxTree2();
+		if( labelMapMaxTree == null || !isCropped() )
+			return labelMapMaxTree;
 		
-		// convert the input to label image (label L is stored in input with value min-1-L all other value should be equal to min-1 )
-		final IntType minT = labelMapMaxTree.firstElement().createVariable();
-        minT.setReal(min-1);
-        final IntType minusOneT = labelMapMaxTree.firstElement().createVariable();
-        minusOneT.setReal(-1);
-        Cursor<IntType> input_cursor2 = labelMapMaxTree.cursor();
-        while( input_cursor2.hasNext() )
+		if( fullLabelMap == null )
 		{
-        	IntType p = input_cursor2.next();
-        	if (p.getRealFloat()>=(min-1) )
-        	{
-        		p.setReal(0);
-        	}
-        	else
-        	{
-        		p.sub(minT);
-            	p.mul(minusOneT);
-        	}
+			fullLabelMap = labelMapFactory.create(fullDimensions, new IntType(0));
+			Cursor<IntType> c_full = Views.flatIterable( Views.interval(fullLabelMap, cropInterval) ).cursor();
+			Cursor<IntType> c_crop = Views.flatIterable( labelMapMaxTree ).cursor();
+			while( c_crop.hasNext() )
+				c_full.next().set( c_crop.next() );
 		}
-		
-        maxTree = new Tree(parent, children);
-        maxTree.setFeature("dynamics", hCriteria );
-        maxTree.setFeature("Imax", Imax );
-        
-        
-        
-        maxTreeIsBuilt=true;
-        
-        return;
-        // at the end, input was tranformed to a label image
-        // hCriteria contains the dynamics of each peak
-        // parent link nodes to their parent node, if label L has no parent, parent[L]=0 
-        // these can be used to build any hMap on the fly.
+		return fullLabelMap;
 	}
 	
 	
+	/**
+	 * The flooding only covers the bounding box of the pixels above threshold and inside the mask.
+	 * @return the label map of that bounding box, its origin is at getCropInterval().min() in the input  
+	 */
+	public Img<IntType> getCroppedLabelMap() {
+		createMaxTree2();
+		return labelMapMaxTree;
+	}
+	
+	
+	/**
+	 * @return the interval of the input covered by the cropped label map
+	 */
+	public Interval getCropInterval() {
+		return cropInterval;
+	}
+	
+	
+	/**
+	 * @return the polarity of the tree, with MINIMA the tree features are measured on -input
+	 */
+	public Polarity getPolarity() {
+		return polarity;
+	}
+	
+	
+	private boolean isCropped() {
+		for( int d=0; d<cropInterval.numDimensions(); d++)
+			if( cropInterval.min(d) != 0 || cropInterval.max(d) != fullDimensions[d]-1 )
+				return true;
+		return false;
+	}
+	
+	
+	/**
+	 * Set the storage of the tree features (dynamics, Imax and the node attributes), to be called before the tree is built.
+	 * The features are computed in double precision, FLOAT halves the memory of the features of large trees.
+	 * @param featureStorage storage type of the tree features, DOUBLE by default
+	 */
+	public void setFeatureStorage(FeatureColumn.Storage featureStorage) {
+		this.featureStorage = featureStorage;
+	}
+	
+	
+	/**
+	 * Set whether the node attributes are computed during the flooding, to be called before the tree is built.
+	 * The attributes are the tree features area, sum, sumOfSquares, bboxMin&lt;d&gt;, bboxMax&lt;d&gt; and peak&lt;d&gt;, 
+	 * measured on the union of the pixels of the leaves of each node. Positions are in the input coordinates and 
+	 * intensities are measured on the values of the flooding, i.e. on -input with MINIMA.
+	 * They cost an extra pass on the label map and about 3+3*ndim features per node.
+	 * @param computeNodeAttributes false by default
+	 */
+	public void setComputeNodeAttributes(boolean computeNodeAttributes) {
+		this.computeNodeAttributes = computeNodeAttributes;
+	}
+	
+	
+	/**
+	 * Set the listener receiving the progress of the tree construction and able to cancel it, to be called before 
+	 * the tree is built. By default the progress is ignored, ProgressListener.getDefault() reports it to the ProgressDialog.
+	 * @param progress a progress listener, ProgressListener.NONE to ignore the progress
+	 */
+	public void setProgressListener(ProgressListener progress) {
+		this.progress = progress==null ? ProgressListener.NONE : progress;
+	}
+
+
 	// version 2: 
 	//	- provide necessary info for interactive plotting of any watershed with h and I thresholds 
 	//	- adjust tree construction	
 	
 	// Input: I
 	// Output: watershed label, Parent, Hcriteria, Imax,
-	// algo will discretize value
+	// algo floods the rank of the values among the distinct values of I, features are measured on the values
+	// the regional maxima are not labeled beforehand, they are discovered when the flooding reaches their level
+	// only the per pixel passes before and after the flooding (levels of the pixels, final relabeling) run in
+	// parallel, see ParallelLoop, the flooding and the tree construction are sequential
 	//
-	// I_localMin = local_minima(I)
 	// Imin = min(I); Imax = max(I)
 	// Imin = max(Imin, Thresh)
-	// Q = Queue labeled pixel in a priority queue with FIFO policy
+	// Q = priority queue with FIFO policy
 	// define out of bound to have value Imin-1
-	// initialize parent to -I+Imin if labeled, 0 otherwise // size wise parent will 2*max(I_localMin)-1
 	// initialize Hcriteria to 0
-	// initialize isDequeued to false
-	// while Q.hasNext()
+	// for each level l, from Imax to Imin
+	//	for each regional maximum at level l // discovered from the pixels with no higher neighbor 
+	//		label it with a new leaf, queue its pixels in front of level l 
+	// while Q.hasNext() at level l
 	//
 	//	p=Q.next()
 	//  isdeQueued[p]=true;
@@ -472,79 +762,182 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		if ( maxTreeIsBuilt | wasCancelled)
 			return;
 		
-		ProgressDialog.reset();
+		progress.reset();
 		
 		//////////////////////////////////////////////////////////////////////
 		// initialisation ////////////////////////////////////////////////////
-		ProgressDialog.setStatusText("HWatershed: Initialisation");
-		ProgressDialog.setProgress( 0 );
+		progress.setStatusText("HWatershed: Initialisation");
+		progress.setProgress( 0 );
 		
-		IntType Tmin = labelMapMaxTree.randomAccess().get().createVariable();
-		IntType Tmax = Tmin.createVariable();		
-		ComputeMinMax.computeMinMax(labelMapMaxTree, Tmin, Tmax);
-		float min = Math.max(threshold, Tmin.getRealFloat());
-		float max = Tmax.getRealFloat();
+		// labelMapMaxTree contains pixels level, i.e. their rank in levelValues, pixels below threshold are at level -1 
+		float min = 0;
+		float max = levelValues.length-1;
+		// regional maxima are searched strictly above the flooding base value 
+		final int minSeedLevel = ( levelValues.length>0 && levelValues[0] <= minValue ) ? 1 : 0;
 		
-		// get local maxima (8/26 connected by default)
-		LocalMaximaLabeling maxLabeler = new LocalMaximaLabeling();
-		Img<IntType> seed = maxLabeler.LocalMaxima(labelMapMaxTree,min);	
-		IntType TnSeeds = new IntType(0);
-		IntType Tdummy = new IntType(0);
-		ComputeMinMax.computeMinMax(seed, Tdummy, TnSeeds);
-		int nLeaves = (int) TnSeeds.getRealFloat();
+		int ndim = labelMapMaxTree.numDimensions();
+		long[] dimensions = new long[ndim]; labelMapMaxTree.dimensions(dimensions);
 		
+		// initialize tree and node features arrays, they grow as the nodes are created during the flooding
+		newNode = 0;
+		hCriteria = new double[64];
+		Imax = new double[64];
+		parent = new int[64];
+		children = new int[2*64];
+		leafMaxIdx = new long[64];
+		rootCacheParent = new int[64];
+		rootCacheRank = new byte[64];
+		rootCacheRoot = new int[64];
+		initNodes(0);
+		attributes = computeNodeAttributes ? new NodeAttributes(dimensions, 64) : null;
 		
-		// create a priority queue
-		HierarchicalFIFO Q = new HierarchicalFIFO( (int)min, (int)max);
+		// label maps with less than 2^31 pixels are ArrayImg and are flooded with int indices, 
+		// larger label maps are CellImg and are flooded with long indices
+		final boolean isArrayImg = labelMapMaxTree instanceof ArrayImg && ((ArrayImg<?,?>)labelMapMaxTree).update(null) instanceof IntArray;
+		final int[] labels = isArrayImg ? ((IntArray)((ArrayImg<?,?>)labelMapMaxTree).update(null)).getCurrentStorageArray() : null;
 		
-		int ndim = labelMapMaxTree.numDimensions();
-		long[] dimensions = new long[ndim]; labelMapMaxTree.dimensions(dimensions);
+		// collect the histogram of the pixels to flood and the candidate maxima, i.e. the pixels with no higher neighbor
+		// each pixel above min is queued exactly once at its own level, the histogram gives the exact size of each level bucket
+		// a first pass counts the pixels and the candidates of each level, a second pass stores the candidates sorted by 
+		// level, in scan order within a level. Indices and counts are long to support label maps with more than 2^31 pixels
+		long[] histogram = new long[ (int)max - (int)min + 1 ];
+		long[] candidatePos = new long[histogram.length];
+		if( isArrayImg )
+			collectCandidatesArray(labels, dimensions, minSeedLevel, histogram, null, candidatePos);
+		else
+			collectCandidates(dimensions, minSeedLevel, histogram, null, candidatePos);
 		
-		// create a flat iterable cursor
-		long[] minInt = new long[ ndim ], maxInt = new long[ ndim ];
-		for ( int d = 0; d < ndim; ++d ){   minInt[ d ] = 0 ;    maxInt[ d ] = dimensions[d] - 1 ;  }
-		FinalInterval interval = new FinalInterval( minInt, maxInt );
-		final Cursor< IntType > input_cursor = Views.flatIterable( Views.interval( labelMapMaxTree, interval)).cursor();
-		final Cursor< IntType > seed_cursor = Views.flatIterable( Views.interval( seed, interval)).cursor();
-		
-		// initialize tree and node features arrays
-		double[] hCriteria = new double[2*nLeaves];
-		double[] Imax = new double[2*nLeaves];
-		int[] parent = new int[2*nLeaves];
-		int[][] children = new int[2*nLeaves][];
-		for(int i=0; i<hCriteria.length; i++)
-		{
-			children[i] = new int[] {-1,-1};
-			parent[i]=i;
-			hCriteria[i]=0;
-			Imax[i]=min;
+		long pixToProcessCount = 0;
+		for( long count : histogram )
+			pixToProcessCount += count;
+		
+		candidateStart = new long[histogram.length+1];
+		for( int l=0; l<histogram.length; l++)
+		{
+			candidateStart[l+1] = candidateStart[l] + candidatePos[l];
+			candidatePos[l] = candidateStart[l];
+		}
+		candidates = new PagedLongArray( candidateStart[histogram.length] );
+		if( candidates.size()>0 )
+		{
+			if( isArrayImg )
+				collectCandidatesArray(labels, dimensions, minSeedLevel, null, candidates, candidatePos);
+			else
+				collectCandidates(dimensions, minSeedLevel, null, candidates, candidatePos);
 		}
+		candidatePos = null;
 		
-		// fill the queue
-		int idx=-1;
-		int pixToProcessCount = 0;
-		while( input_cursor.hasNext() )
+		// define the connectivity
+		long[][] neigh = ImageConnectivity.getConnectivityPos(ndim, connectivity.getConn() );
+		
+		/////////////////////////////////////////////////////////////////////////////////////
+		// building the watershed and the tree //////////////////////////////////////////////
+		progress.setStatusText("HWatershed: building label map and segment tree");
+		
+		// create a priority queue, the regional maxima are put in front of their level when the flooding reaches it
+		boolean isComplete;
+		if( isArrayImg )
+		{
+			HierarchicalBucketFIFO Q = new HierarchicalBucketFIFO( (int)min, histogram);
+			histogram = null;
+			
+			int[] n_offset = ImageConnectivity.getIdxOffsetToCenterPix(neigh, dimensions);
+			isComplete = floodArray(Q, labels, dimensions, neigh, n_offset, min, minSeedLevel, pixToProcessCount);
+		}
+		else
 		{
-			++idx;
-			IntType pInput = input_cursor.next();
-			float pVal = pInput.getRealFloat();
-			float valSeed = seed_cursor.next().getRealFloat(); 
-			if ( pVal>=min)
+			HierarchicalLongBucketFIFO Q = new HierarchicalLongBucketFIFO( (int)min, histogram);
+			histogram = null;
+			
+			long[] n_offset = ImageConnectivity.getLongIdxOffsetToCenterPix(neigh, dimensions);
+			isComplete = flood(Q, dimensions, neigh, n_offset, min, minSeedLevel, pixToProcessCount);
+		}
+		candidates = null;
+		candidateStart = null;
+		
+		if( ! isComplete )
+		{
+			labelMapMaxTree=null;
+			maxTree = null;
+			leafMaxIdx = null;
+			attributes = null;
+			rootCacheParent = null;
+			rootCacheRank = null;
+			rootCacheRoot = null;
+			progress.finish();
+			wasCancelled=true;
+			return;
+		}
+		
+		// leaves were numbered in discovery order, number them as in the seed image of a local maxima labeling 
+		final int[] newId = renumberNodes();
+		
+		// for root nodes adjust there height to Imax(rootLabel)-min. 
+		for(int i=0 ; i<parent.length; i++)
+		{
+			if( hCriteria[i]>0 & parent[i]==i)
 			{
-				pixToProcessCount++;
-				if ( valSeed>0)
-				{
-					Q.add( idx, (int)pVal );
-					pInput.setReal(min-1-valSeed);
-					Imax[(int)valSeed]= pVal;
-				}
+				hCriteria[i] = Imax[i]-minValue;
 			}
-			else
+		}
+		
+		//////////////////////////////////////////////////////////////////////////////////
+		// final pass on the label image /////////////////////////////////////////////////
+		progress.setStatusText("HWatershed: final pass");
+		
+		
+		// convert the input to label image (label L is stored in input with value min-1-L-DEQUEUED all other value should be at least min-1 )
+		// the pixels are independent, chunks of the image are converted in parallel
+		final int outOfBound = (int)min-1;
+		ParallelLoop.run( labelMapMaxTree.size(), ParallelLoop.getNumChunks( labelMapMaxTree.size() ), (chunk, start, end) ->
+		{
+			Cursor<IntType> input_cursor2 = Views.flatIterable( labelMapMaxTree ).cursor();
+			input_cursor2.jumpFwd(start);
+			for( long i=start; i<end; i++)
 			{
-				pInput.setReal(min-1);
+				IntType p = input_cursor2.next();
+				final int pVal = p.get();
+				p.set( pVal>=outOfBound ? 0 : newId[outOfBound-DEQUEUED-pVal] );
 			}
-		}
+		});
 		
+        maxTree = new Tree(parent, children);
+        maxTree.setFeatureColumn("dynamics", FeatureColumn.create(hCriteria, featureStorage) );
+        maxTree.setFeatureColumn("Imax", FeatureColumn.create(Imax, featureStorage) );
+        if( attributes != null )
+        {
+        	attributes.addPositions(labelMapMaxTree);
+        	attributes.aggregate(maxTree, Imax);
+        	attributes.setFeatures(maxTree, Intervals.minAsLongArray(cropInterval), featureStorage);
+        }
+        
+        // release the tree construction arrays
+        parent = null;
+        children = null;
+        hCriteria = null;
+        Imax = null;
+        attributes = null;
+        
+        maxTreeIsBuilt=true;
+        
+        progress.finish();
+        wasCancelled=false;
+        return;
+        // at the end, input was tranformed to a label image
+        // hCriteria contains the dynamics of each peak
+        // parent link nodes to their parent node, if label L has no parent, parent[L]=0 
+        // these can be used to build any hMap on the fly.
+	}
+	
+	
+	// flooding of the label map through RandomAccess, works for any Img type and any number of pixels
+	// return false if the flooding was cancelled
+	private boolean flood(HierarchicalLongBucketFIFO Q, long[] dimensions, long[][] neigh, long[] n_offset, float min, int minSeedLevel, long pixToProcessCount)
+	{
+		final int ndim = dimensions.length;
+		final int nNeigh = n_offset.length;
+		final int outOfBound = (int)min-1;
+		final long[][] dPosList = ImageConnectivity.getSuccessiveMove(neigh);
 		
 		// extend input and seeds to to deal with out of bound
 		IntType outOfBoundT = labelMapMaxTree.firstElement().createVariable(); 
@@ -552,229 +945,737 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		RandomAccess< IntType > input_XRA = Views.extendValue(labelMapMaxTree, outOfBoundT ).randomAccess();
 		RandomAccess< IntType > input_XRA2 = input_XRA.copyRandomAccess();
 		
-		// define the connectivity
-		long[][] neigh = ImageConnectivity.getConnectivityPos(ndim, connectivity.getConn() );
-		int[] n_offset = ImageConnectivity.getIdxOffsetToCenterPix(neigh, dimensions);
-		long[][] dPosList = ImageConnectivity.getSuccessiveMove(neigh);
-		int nNeigh = n_offset.length;
-		
-		
-		boolean[] isDequeued = new boolean[(int)labelMapMaxTree.size()];
-		for (int i=0; i<isDequeued.length; i++)
-			isDequeued[i]=false;
+		// regional maxima are connected with full connectivity
+		final long[][] fullNeigh = ImageConnectivity.getConnectivityPos(ndim, ImageConnectivity.Connectivity.FULL );
+		final long[] full_offset = ImageConnectivity.getLongIdxOffsetToCenterPix(fullNeigh, dimensions);
 		
-		/////////////////////////////////////////////////////////////////////////////////////
-		// building the watershed and the tree //////////////////////////////////////////////
-		ProgressDialog.setStatusText("HWatershed: building label map and segment tree");
-		
-		int newNode = nLeaves;
-		int pixProcessed = 0;
-		int prevPercentDone = 0;
-		while( Q.HasNext() )
+		final long[] posCurrent = new long[ndim];
+		long pixProcessed = 0;
+		int nextLevelToDiscover = levelValues.length-1;
+		while( true )
 		{ 	
+			// the regional maxima of a level are queued before the first pixel of that level is processed
+			final int level = levelValues.length>0 && Q.HasNext() ? Q.getCurrent_level() + Q.getMin() : -1;
+			boolean hasSeeds = false;
+			while( !hasSeeds && nextLevelToDiscover >= Math.max(level, minSeedLevel) )
+				hasSeeds = discoverMaxima(Q, input_XRA, nextLevelToDiscover--, dimensions, fullNeigh, full_offset);
+			if( hasSeeds )
+				continue;
+			if( level < 0 )
+				break;
 			
 			pixProcessed++;
-			final int percentDone = (pixProcessed*100)/pixToProcessCount;
-			if( percentDone != prevPercentDone ){
-				prevPercentDone = percentDone;
-				ProgressDialog.setProgress( percentDone*0.01f );
-				if (ProgressDialog.wasCancelled())
-				{
-					labelMapMaxTree=null;
-					maxTree = null;
-					ProgressDialog.reset();
-					ProgressDialog.finish();
-					wasCancelled=true;
-					return;
-				}
+			if( (pixProcessed & PROGRESS_MASK) == 0 ){
+				progress.setProgress( (double)pixProcessed/pixToProcessCount );
+				if (progress.wasCancelled())
+					return false;
 			}
 			
 			
-			final int pIdx = (int) Q.Next(); 
-			final int pVal = Q.getCurrent_level() + Q.getMin();
+			final long pIdx = Q.Next(); 
+			final double pVal = levelValues[ Q.getCurrent_level() + Q.getMin() ];
 			
-			final long[] posCurrent = new long[ndim];
-			getPosFromIdx((long)pIdx, posCurrent, dimensions);
+			getPosFromIdx(pIdx, posCurrent, dimensions);
 			input_XRA.setPosition(posCurrent);
 			IntType p = input_XRA.get();
-			int pLeaf = (int)(min - 1 - p.getRealFloat());
-			int pNode = findRoot(pLeaf, parent);
-			//System.out.println("pLeaf "+ pLeaf +" , pNode "+ pNode );
-			isDequeued[pIdx]=true;
+			int pLeaf = outOfBound - p.get();
+			int pNode = findRootCached(pLeaf);
+			p.set( p.get() - DEQUEUED );
+			if( attributes != null )
+				attributes.addPixel(pLeaf, pVal);
 			
 			// loop on neighbors			
 			input_XRA2.setPosition(posCurrent);
 			for( int i=0; i<nNeigh; i++)
 			{
-				final int nIdx = pIdx + n_offset[i];
+				final long nIdx = pIdx + n_offset[i];
 				
 				input_XRA2.move(dPosList[i]);
 				final IntType n = input_XRA2.get();
-				final float nVal = n.getRealFloat();
+				final int nVal = n.get();
 				
-				if ( nVal != (min-1) ) // if n is in-bound
-				{
-					if( isDequeued[nIdx] ) // p is the lowest point 
-					{	
-						int nLeaf = (int)(min - 1 - nVal);
-						int nNode = findRoot(nLeaf, parent);
-						
-						if( nNode != pNode ) // 2 distincts nodes are meeting and p is the saddle : merge Nodes
-						{
-							
-							newNode++;
-							double Hn = Imax[nNode]-pVal;
-							hCriteria[nNode] = Hn;
-							double Hp = Imax[pNode]-pVal;
-							hCriteria[pNode] = Hp;
-
-							//System.out.println("nLeaf "+ nLeaf +" , nNode "+ nNode +" , Hn "+ Hn );
-							//System.out.println("pLeaf "+ pLeaf +" , pNode "+ pNode +" , Hp "+ Hp );
-
-							//merge the node with smallest H with first neighbor node that has higher dynamics
-							int node1, node2;
-							double H1, H2;
-							if (Hp == Hn){
-								node1 = pNode;
-								node2 = nNode;
-							}
-							else if ( Hp < Hn ){
-								node1 = pNode;
-								node2 = nLeaf;
-								H1 = Hp;
-								H2 = hCriteria[node2];
-								while( H2 <= H1 )
-								{	
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-								}
-								
-								double HMerge;
-								if( parent[node2]==node2 )
-									HMerge = Double.POSITIVE_INFINITY;
-								else
-									HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								
-								while( H1 > HMerge )
-								{
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-									if( parent[node2]==node2 )
-										HMerge = Double.POSITIVE_INFINITY;
-									else
-										HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								}
-							}
-							else{ // if( Hn <= Hp )
-								node1 = nNode;
-								node2 = pLeaf;
-								H1 = Hn;
-								
-								H2 = hCriteria[node2];
-								while( H2 <= H1 )
-								{	
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-								}
-								double HMerge;
-								if( parent[node2]==node2 )
-									HMerge = Double.POSITIVE_INFINITY;
-								else
-									HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								
-								while( H1 > HMerge )
-								{
-									node2 = parent[node2];
-									H2 = hCriteria[node2];
-									if( parent[node2]==node2 )
-										HMerge = Double.POSITIVE_INFINITY;
-									else
-										HMerge = Math.min( hCriteria[children[parent[node2]][0]], hCriteria[children[parent[node2]][1]] );
-								}
-							}
-							mergeNodes(node1, node2, newNode, parent, children);
-							pNode=findRoot(newNode, parent);
-							//System.out.println("node1 "+ node1 +" , node2 "+ node2 +" , newNode "+ newNode +" , maxNode "+ (2*nLeaves) );
-
-							Imax[newNode]= Math.max(Imax[node1], Imax[node2]);
-							hCriteria[newNode] =  Math.max(hCriteria[node1], hCriteria[node2]); //Imax[newNode]-pVal;
-							//
-						}
-					}
+				if( nVal < -DEQUEUED ) // n is dequeued, p is the lowest point 
+				{	
+					int nLeaf = outOfBound - DEQUEUED - nVal;
+					int nNode = findRootCached(nLeaf);
 					
-					if ( nVal>=min ) // is not queued yet and is in bound?
-					{
-						Q.add( nIdx, (int)nVal );
-						n.setReal(min -1 - pLeaf);
-					}
+					if( nNode != pNode ) // 2 distincts nodes are meeting and p is the saddle : merge Nodes
+						pNode = mergeAtSaddle(pLeaf, pNode, nLeaf, nNode, pVal);
+				}
+				else if ( nVal>=min ) // is not queued yet and is in bound
+				{
+					Q.add( nIdx, nVal );
+					n.set( outOfBound - pLeaf );
 				}
 				
+			} // end loop on neighbor
+			
+		} // end while
+		
+		return true;
+	}
+	
+	
+	// flooding working directly on the storage array of an ArrayImg label map
+	// neighbors index are obtained with a constant offset, bounds are checked only for pixels on the image border
+	// return false if the flooding was cancelled
+	private boolean floodArray(HierarchicalBucketFIFO Q, int[] labels, long[] dimensions, long[][] neigh, int[] n_offset, float min, int minSeedLevel, long pixToProcessCount)
+	{
+		final int ndim = dimensions.length;
+		final int nNeigh = n_offset.length;
+		final int outOfBound = (int)min-1;
+		final int[] stride = getStrides(dimensions);
+		
+		// regional maxima are connected with full connectivity
+		final long[][] fullNeigh = ImageConnectivity.getConnectivityPos(ndim, ImageConnectivity.Connectivity.FULL );
+		final int[] full_offset = ImageConnectivity.getIdxOffsetToCenterPix(fullNeigh, dimensions);
+		
+		final long[] posCurrent = new long[ndim];
+		long pixProcessed = 0;
+		int nextLevelToDiscover = levelValues.length-1;
+		while( true )
+		{ 	
+			// the regional maxima of a level are queued before the first pixel of that level is processed
+			final int level = levelValues.length>0 && Q.HasNext() ? Q.getCurrent_level() + Q.getMin() : -1;
+			boolean hasSeeds = false;
+			while( !hasSeeds && nextLevelToDiscover >= Math.max(level, minSeedLevel) )
+				hasSeeds = discoverMaximaArray(Q, labels, nextLevelToDiscover--, stride, dimensions, fullNeigh, full_offset);
+			if( hasSeeds )
+				continue;
+			if( level < 0 )
+				break;
+			
+			pixProcessed++;
+			if( (pixProcessed & PROGRESS_MASK) == 0 ){
+				progress.setProgress( (double)pixProcessed/pixToProcessCount );
+				if (progress.wasCancelled())
+					return false;
+			}
+			
+			
+			final int pIdx = (int) Q.Next(); 
+			final double pVal = levelValues[ Q.getCurrent_level() + Q.getMin() ];
+			
+			int pLeaf = outOfBound - labels[pIdx];
+			int pNode = findRootCached(pLeaf);
+			labels[pIdx] -= DEQUEUED;
+			if( attributes != null )
+				attributes.addPixel(pLeaf, pVal);
+			
+			final boolean isOnBorder = isOnBorder(pIdx, stride);
+			if( isOnBorder )
+				getPosFromIdx((long)pIdx, posCurrent, dimensions);
+			
+			// loop on neighbors			
+			for( int i=0; i<nNeigh; i++)
+			{
+				if( isOnBorder && !isInBound(posCurrent, neigh[i], dimensions) )
+					continue;
+				
+				final int nIdx = pIdx + n_offset[i];
+				final int nVal = labels[nIdx];
+				
+				if( nVal < -DEQUEUED ) // n is dequeued, p is the lowest point 
+				{	
+					int nLeaf = outOfBound - DEQUEUED - nVal;
+					int nNode = findRootCached(nLeaf);
+					
+					if( nNode != pNode ) // 2 distincts nodes are meeting and p is the saddle : merge Nodes
+						pNode = mergeAtSaddle(pLeaf, pNode, nLeaf, nNode, pVal);
+				}
+				else if ( nVal>=min ) // is not queued yet 
+				{
+					Q.add( nIdx, nVal );
+					labels[nIdx] = outOfBound - pLeaf;
+				}
 				
 			} // end loop on neighbor
 			
 		} // end while
 		
-		// for root nodes adjust there height to Imax(rootLabel)-min. 
-		for(int i=0 ; i<parent.length; i++)
+		return true;
+	}
+	
+	
+	// collect the candidate maxima of an ArrayImg label map in scan order, a candidate is a pixel at a level above 
+	// minSeedLevel with no higher neighbor in full connectivity. If candidates is null, the pixels and the candidates of
+	// each level are counted in histogram and candidatePos, otherwise a candidate at level l is stored at candidatePos[l]++
+	private static void collectCandidatesArray(int[] labels, long[] dimensions, int minSeedLevel, long[] histogram, PagedLongArray candidates, long[] candidatePos)
+	{
+		final int ndim = dimensions.length;
+		final int[] stride = getStrides(dimensions);
+		final long[][] fullNeigh = ImageConnectivity.getConnectivityPos(ndim, ImageConnectivity.Connectivity.FULL );
+		final int[] full_offset = ImageConnectivity.getIdxOffsetToCenterPix(fullNeigh, dimensions);
+		final int nNeigh = full_offset.length;
+		
+		final long[] posCurrent = new long[ndim];
+		for( int pIdx=0; pIdx<labels.length; pIdx++)
 		{
-			if( hCriteria[i]>0 & parent[i]==i)
+			final int pVal = labels[pIdx];
+			if( pVal<0 )
+				continue;
+			if( candidates==null )
+				histogram[pVal]++;
+			if( pVal<minSeedLevel )
+				continue;
+			
+			final boolean isOnBorder = isOnBorder(pIdx, stride);
+			if( isOnBorder )
+				getPosFromIdx((long)pIdx, posCurrent, dimensions);
+			
+			boolean isCandidate = true;
+			for( int i=0; i<nNeigh && isCandidate; i++)
 			{
-				hCriteria[i] = Imax[i]-min;
+				if( isOnBorder && !isInBound(posCurrent, fullNeigh[i], dimensions) )
+					continue;
+				isCandidate = labels[ pIdx + full_offset[i] ] <= pVal;
+			}
+			if( isCandidate )
+			{
+				if( candidates==null )
+					candidatePos[pVal]++;
+				else
+					candidates.set( candidatePos[pVal]++, pIdx );
 			}
 		}
+	}
+	
+	
+	// same as collectCandidatesArray through RandomAccess, for any Img type and any number of pixels
+	private void collectCandidates(long[] dimensions, int minSeedLevel, long[] histogram, PagedLongArray candidates, long[] candidatePos)
+	{
+		final int ndim = dimensions.length;
+		final long[][] fullNeigh = ImageConnectivity.getConnectivityPos(ndim, ImageConnectivity.Connectivity.FULL );
+		final long[][] dPosList = ImageConnectivity.getSuccessiveMove(fullNeigh);
+		final int nNeigh = fullNeigh.length;
 		
-		//////////////////////////////////////////////////////////////////////////////////
-		// final pass on the label image /////////////////////////////////////////////////
-		ProgressDialog.setStatusText("HWatershed: final pass");
+		IntType outOfBoundT = new IntType(-1);
+		RandomAccess< IntType > label_XRA = Views.extendValue(labelMapMaxTree, outOfBoundT ).randomAccess();
+		Cursor< IntType > cursor = Views.flatIterable( labelMapMaxTree ).localizingCursor();
+		long pIdx = -1;
+		while( cursor.hasNext() )
+		{
+			final int pVal = cursor.next().get();
+			pIdx++;
+			if( pVal<0 )
+				continue;
+			if( candidates==null )
+				histogram[pVal]++;
+			if( pVal<minSeedLevel )
+				continue;
+			
+			label_XRA.setPosition(cursor);
+			boolean isCandidate = true;
+			for( int i=0; i<nNeigh && isCandidate; i++)
+			{
+				label_XRA.move(dPosList[i]);
+				isCandidate = label_XRA.get().get() <= pVal;
+			}
+			if( isCandidate )
+			{
+				if( candidates==null )
+					candidatePos[pVal]++;
+				else
+					candidates.set( candidatePos[pVal]++, pIdx );
+			}
+		}
+	}
+	
+	
+	// Discovery of the regional maxima at a level, called before the first pixel of that level is processed.
+	// A regional maximum is a connected component of pixels at that level with no higher neighbor (full connectivity).
+	// All pixels above the level are processed, the pixels of the level that are already queued have a higher 
+	// neighbor. A component is thus a maximum if it does not touch a queued pixel of the level and all its pixels are 
+	// candidates. The queued pixels of the level are flagged with queuedFlag+leaf, a value above any level, while 
+	// the components are explored.
+	// The pixels of each maximum get a new leaf label and are put in front of their level in the queue, in scan order.
+	// return true if a maximum was found
+	private boolean discoverMaximaArray(HierarchicalBucketFIFO Q, int[] labels, int level, int[] stride, long[] dimensions, long[][] fullNeigh, int[] full_offset)
+	{
+		final long cStart = candidateStart[level];
+		final long cEnd = candidateStart[level+1];
+		if( cStart==cEnd )
+			return false;
 		
+		final int outOfBound = -1;
+		final int queuedFlag = levelValues.length;
+		final int nNeigh = full_offset.length;
 		
-		// convert the input to label image (label L is stored in input with value min-1-L all other value should be equal to min-1 )
-		final IntType minT = labelMapMaxTree.firstElement().createVariable();
-        minT.setReal(min-1);
-        final IntType minusOneT = labelMapMaxTree.firstElement().createVariable();
-        minusOneT.setReal(-1);
-        Cursor<IntType> input_cursor2 = labelMapMaxTree.cursor();
-        while( input_cursor2.hasNext() )
+		final long nQueued = Q.size(level);
+		for( long i=0; i<nQueued; i++)
 		{
-        	IntType p = input_cursor2.next();
-        	if (p.getRealFloat()>=(min-1) )
-        	{
-        		p.setReal(0);
-        	}
-        	else
-        	{
-        		p.sub(minT);
-            	p.mul(minusOneT);
-        	}
+			final int idx = (int) Q.get(level, i);
+			labels[idx] = queuedFlag + outOfBound - labels[idx];
 		}
 		
-        maxTree = new Tree(parent, children);
-        maxTree.setFeature("dynamics", hCriteria );
-        maxTree.setFeature("Imax", Imax );
-        
-        
-        
-        maxTreeIsBuilt=true;
-        
-        ProgressDialog.finish();
-        wasCancelled=false;
-        return;
-        // at the end, input was tranformed to a label image
-        // hCriteria contains the dynamics of each peak
-        // parent link nodes to their parent node, if label L has no parent, parent[L]=0 
-        // these can be used to build any hMap on the fly.
+		LongList component = new LongList();
+		LongList visited = new LongList(); // pixels of the components that are not maxima
+		LongList seeds = new LongList();
+		final long[] posCurrent = new long[dimensions.length];
+		for( long c=cStart; c<cEnd; c++)
+		{
+			final int cIdx = (int) candidates.get(c);
+			if( labels[cIdx] != level ) // already explored
+				continue;
+			
+			component.clear();
+			component.add(cIdx);
+			labels[cIdx] = VISITED;
+			boolean isMax = true;
+			long maxIdx = cIdx;
+			for( int k=0; k<component.size(); k++)
+			{
+				final int pIdx = (int) component.get(k);
+				maxIdx = Math.max(maxIdx, pIdx);
+				if( isMax && candidates.binarySearch(cStart, cEnd, pIdx) < 0 )
+					isMax = false;
+				
+				final boolean isOnBorder = isOnBorder(pIdx, stride);
+				if( isOnBorder )
+					getPosFromIdx((long)pIdx, posCurrent, dimensions);
+				for( int i=0; i<nNeigh; i++)
+				{
+					if( isOnBorder && !isInBound(posCurrent, fullNeigh[i], dimensions) )
+						continue;
+					final int nIdx = pIdx + full_offset[i];
+					final int nVal = labels[nIdx];
+					if( nVal == level )
+					{
+						labels[nIdx] = VISITED;
+						component.add(nIdx);
+					}
+					else if( nVal >= queuedFlag )
+						isMax = false;
+				}
+			}
+			
+			if( isMax )
+			{
+				final int leaf = createNode(maxIdx);
+				Imax[leaf] = levelValues[level];
+				for( int k=0; k<component.size(); k++)
+				{
+					labels[ (int) component.get(k) ] = outOfBound - leaf;
+					seeds.add( component.get(k) );
+				}
+			}
+			else
+			{
+				for( int k=0; k<component.size(); k++)
+					visited.add( component.get(k) );
+			}
+		}
+		
+		// restore the explored pixels and the queued pixels
+		for( int k=0; k<visited.size(); k++)
+			labels[ (int) visited.get(k) ] = level;
+		for( long i=0; i<nQueued; i++)
+		{
+			final int idx = (int) Q.get(level, i);
+			labels[idx] = queuedFlag + outOfBound - labels[idx];
+		}
+		
+		seeds.sort();
+		Q.addFirst( seeds, level );
+		
+		return seeds.size()>0;
+	}
+	
+	
+	// same as discoverMaximaArray through RandomAccess, for any Img type and any number of pixels
+	private boolean discoverMaxima(HierarchicalLongBucketFIFO Q, RandomAccess<IntType> labelRA, int level, long[] dimensions, long[][] fullNeigh, long[] full_offset)
+	{
+		final long cStart = candidateStart[level];
+		final long cEnd = candidateStart[level+1];
+		if( cStart==cEnd )
+			return false;
+		
+		final int outOfBound = -1;
+		final int queuedFlag = levelValues.length;
+		final int ndim = dimensions.length;
+		final int nNeigh = full_offset.length;
+		final long[] posCurrent = new long[ndim];
+		final long[] posNeigh = new long[ndim];
+		
+		final long nQueued = Q.size(level);
+		for( long i=0; i<nQueued; i++)
+		{
+			getPosFromIdx(Q.get(level, i), posCurrent, dimensions);
+			labelRA.setPosition(posCurrent);
+			final IntType p = labelRA.get();
+			p.set( queuedFlag + outOfBound - p.get() );
+		}
+		
+		LongList component = new LongList();
+		LongList visited = new LongList(); // pixels of the components that are not maxima
+		LongList seeds = new LongList();
+		for( long c=cStart; c<cEnd; c++)
+		{
+			final long cIdx = candidates.get(c);
+			getPosFromIdx(cIdx, posCurrent, dimensions);
+			labelRA.setPosition(posCurrent);
+			if( labelRA.get().get() != level ) // already explored
+				continue;
+			
+			component.clear();
+			component.add(cIdx);
+			labelRA.get().set(VISITED);
+			boolean isMax = true;
+			long maxIdx = cIdx;
+			for( int k=0; k<component.size(); k++)
+			{
+				final long pIdx = component.get(k);
+				maxIdx = Math.max(maxIdx, pIdx);
+				if( isMax && candidates.binarySearch(cStart, cEnd, pIdx) < 0 )
+					isMax = false;
+				
+				getPosFromIdx(pIdx, posCurrent, dimensions);
+				for( int i=0; i<nNeigh; i++)
+				{
+					if( !isInBound(posCurrent, fullNeigh[i], dimensions) )
+						continue;
+					for( int d=0; d<ndim; d++)
+						posNeigh[d] = posCurrent[d] + fullNeigh[i][d];
+					labelRA.setPosition(posNeigh);
+					final IntType n = labelRA.get();
+					final int nVal = n.get();
+					if( nVal == level )
+					{
+						n.set(VISITED);
+						component.add( pIdx + full_offset[i] );
+					}
+					else if( nVal >= queuedFlag )
+						isMax = false;
+				}
+			}
+			
+			if( isMax )
+			{
+				final int leaf = createNode(maxIdx);
+				Imax[leaf] = levelValues[level];
+				for( int k=0; k<component.size(); k++)
+				{
+					getPosFromIdx(component.get(k), posCurrent, dimensions);
+					labelRA.setPosition(posCurrent);
+					labelRA.get().set( outOfBound - leaf );
+					seeds.add( component.get(k) );
+				}
+			}
+			else
+			{
+				for( int k=0; k<component.size(); k++)
+					visited.add( component.get(k) );
+			}
+		}
+		
+		// restore the explored pixels and the queued pixels
+		for( int k=0; k<visited.size(); k++)
+		{
+			getPosFromIdx(visited.get(k), posCurrent, dimensions);
+			labelRA.setPosition(posCurrent);
+			labelRA.get().set(level);
+		}
+		for( long i=0; i<nQueued; i++)
+		{
+			getPosFromIdx(Q.get(level, i), posCurrent, dimensions);
+			labelRA.setPosition(posCurrent);
+			final IntType p = labelRA.get();
+			p.set( queuedFlag + outOfBound - p.get() );
+		}
+		
+		seeds.sort();
+		Q.addFirst( seeds, level );
+		
+		return seeds.size()>0;
+	}
+	
+	
+	// the levels are stored in the int label map alongside the queue labels, see MAX_LEVELS
+	private static void checkLevelCount(int nLevels)
+	{
+		if( nLevels > MAX_LEVELS )
+			throw new IllegalArgumentException("HWatershed: the input has "+nLevels+" distinct values above threshold, at most "+MAX_LEVELS+" are supported");
+	}
+	
+	
+	// create a node in the tree construction arrays, the arrays grow as the nodes are created
+	// maxIdx is the index of the last pixel of the regional maximum of a leaf, -1 for the other nodes
+	private int createNode(long maxIdx)
+	{
+		if( newNode >= DEQUEUED-2 )
+			throw new IllegalStateException("HWatershed: the number of nodes exceeds the capacity of the label encoding");
+		newNode++;
+		if( newNode == parent.length )
+		{
+			final int length = parent.length;
+			parent = Arrays.copyOf(parent, 2*length);
+			children = Arrays.copyOf(children, 4*length);
+			hCriteria = Arrays.copyOf(hCriteria, 2*length);
+			Imax = Arrays.copyOf(Imax, 2*length);
+			leafMaxIdx = Arrays.copyOf(leafMaxIdx, 2*length);
+			rootCacheParent = Arrays.copyOf(rootCacheParent, 2*length);
+			rootCacheRank = Arrays.copyOf(rootCacheRank, 2*length);
+			rootCacheRoot = Arrays.copyOf(rootCacheRoot, 2*length);
+			initNodes(length);
+			if( attributes != null )
+				attributes.grow(2*length);
+		}
+		leafMaxIdx[newNode] = maxIdx;
+		return newNode;
+	}
+	
+	
+	// initialize the nodes from index start to the end of the tree construction arrays
+	private void initNodes(int start)
+	{
+		for(int i=start; i<parent.length; i++)
+		{
+			children[2*i]=-1;
+			children[2*i+1]=-1;
+			parent[i]=i;
+			hCriteria[i]=0;
+			Imax[i]=minValue;
+			leafMaxIdx[i]=-1;
+			if( rootCacheParent!=null ) {
+				rootCacheParent[i]=i;
+				rootCacheRoot[i]=i;
+			}
+		}
+	}
+	
+	
+	// The nodes are created in flooding order, leaves and merge nodes interleaved. Renumber them as if all the
+	// regional maxima had been labeled before the flooding: leaves are numbered from 1 to nLeaves by decreasing 
+	// index of the last pixel of their maximum, then the merge nodes follow in creation order. The tree 
+	// construction arrays are replaced by arrays of size 2*nLeaves.
+	// return the new number of each node
+	private int[] renumberNodes()
+	{
+		final int nNodes = newNode;
+		int nLeaves = 0;
+		for( int i=1; i<=nNodes; i++)
+			if( leafMaxIdx[i]>=0 )
+				nLeaves++;
+		
+		long[] sortedMaxIdx = new long[nLeaves];
+		int count = 0;
+		for( int i=1; i<=nNodes; i++)
+			if( leafMaxIdx[i]>=0 )
+				sortedMaxIdx[count++] = leafMaxIdx[i];
+		Arrays.sort(sortedMaxIdx);
+		
+		final int[] newId = new int[nNodes+1];
+		int nextNode = nLeaves;
+		for( int i=1; i<=nNodes; i++)
+		{
+			if( leafMaxIdx[i]>=0 )
+				newId[i] = nLeaves - Arrays.binarySearch(sortedMaxIdx, leafMaxIdx[i]);
+			else
+				newId[i] = ++nextNode;
+		}
+		
+		final int[] oldParent = parent;
+		final int[] oldChildren = children;
+		final double[] oldHCriteria = hCriteria;
+		final double[] oldImax = Imax;
+		if( attributes != null )
+			attributes.renumber(newId, nNodes, 2*nLeaves, leafMaxIdx);
+		rootCacheParent = null;
+		rootCacheRank = null;
+		rootCacheRoot = null;
+		parent = new int[2*nLeaves];
+		children = new int[4*nLeaves];
+		hCriteria = new double[2*nLeaves];
+		Imax = new double[2*nLeaves];
+		leafMaxIdx = new long[2*nLeaves];
+		initNodes(0);
+		leafMaxIdx = null;
+		
+		for( int i=1; i<=nNodes; i++)
+		{
+			final int node = newId[i];
+			parent[node] = newId[ oldParent[i] ];
+			for( int j=0; j<2; j++)
+				children[2*node+j] = oldChildren[2*i+j]<0 ? -1 : newId[ oldChildren[2*i+j] ];
+			hCriteria[node] = oldHCriteria[i];
+			Imax[node] = oldImax[i];
+		}
+		
+		return newId;
+	}
+	
+	
+	// stride[d] is the index offset between 2 pixels consecutive along dimension d, stride[ndim] is the number of pixels 
+	private static int[] getStrides(long[] dimensions)
+	{
+		final int ndim = dimensions.length;
+		final int[] stride = new int[ndim+1];
+		stride[0] = 1;
+		for( int d=0; d<ndim; d++)
+			stride[d+1] = stride[d] * (int)dimensions[d];
+		return stride;
+	}
+	
+	
+	// true if the pixel is on the first or last hyperplane of one of the dimensions
+	private static boolean isOnBorder(int idx, int[] stride)
+	{
+		final int ndim = stride.length-1;
+		if( idx < stride[ndim-1]  ||  idx >= stride[ndim]-stride[ndim-1] )
+			return true;
+		for( int d=0; d<ndim-1; d++)
+		{
+			final int r = idx % stride[d+1];
+			if( r < stride[d]  ||  r >= stride[d+1]-stride[d] )
+				return true;
+		}
+		return false;
+	}
+	
+	
+	// 2 distincts nodes are meeting and p is the saddle: the node with the smallest dynamics is merged with 
+	// the first node on the path to the root of the other node that has higher dynamics
+	// return the root of the merged nodes 
+	private int mergeAtSaddle(int pLeaf, int pNode, int nLeaf, int nNode, double pVal)
+	{
+		createNode(-1);
+		double Hn = Imax[nNode]-pVal;
+		hCriteria[nNode] = Hn;
+		double Hp = Imax[pNode]-pVal;
+		hCriteria[pNode] = Hp;
+
+		//merge the node with smallest H with first neighbor node that has higher dynamics
+		int node1, node2;
+		double H1, H2;
+		if (Hp == Hn){
+			node1 = pNode;
+			node2 = nNode;
+		}
+		else if ( Hp < Hn ){
+			node1 = pNode;
+			node2 = nLeaf;
+			H1 = Hp;
+			H2 = hCriteria[node2];
+			while( H2 <= H1 )
+			{	
+				node2 = parent[node2];
+				H2 = hCriteria[node2];
+			}
+			
+			double HMerge;
+			if( parent[node2]==node2 )
+				HMerge = Double.POSITIVE_INFINITY;
+			else
+				HMerge = Math.min( hCriteria[children[2*parent[node2]]], hCriteria[children[2*parent[node2]+1]] );
+			
+			while( H1 > HMerge )
+			{
+				node2 = parent[node2];
+				H2 = hCriteria[node2];
+				if( parent[node2]==node2 )
+					HMerge = Double.POSITIVE_INFINITY;
+				else
+					HMerge = Math.min( hCriteria[children[2*parent[node2]]], hCriteria[children[2*parent[node2]+1]] );
+			}
+		}
+		else{ // if( Hn <= Hp )
+			node1 = nNode;
+			node2 = pLeaf;
+			H1 = Hn;
+			
+			H2 = hCriteria[node2];
+			while( H2 <= H1 )
+			{	
+				node2 = parent[node2];
+				H2 = hCriteria[node2];
+			}
+			double HMerge;
+			if( parent[node2]==node2 )
+				HMerge = Double.POSITIVE_INFINITY;
+			else
+				HMerge = Math.min( hCriteria[children[2*parent[node2]]], hCriteria[children[2*parent[node2]+1]] );
+			
+			while( H1 > HMerge )
+			{
+				node2 = parent[node2];
+				H2 = hCriteria[node2];
+				if( parent[node2]==node2 )
+					HMerge = Double.POSITIVE_INFINITY;
+				else
+					HMerge = Math.min( hCriteria[children[2*parent[node2]]], hCriteria[children[2*parent[node2]+1]] );
+			}
+		}
+		mergeNodes(node1, node2, newNode, parent, children);
+
+		Imax[newNode]= Math.max(Imax[node1], Imax[node2]);
+		hCriteria[newNode] =  Math.max(hCriteria[node1], hCriteria[node2]); //Imax[newNode]-pVal;
+		
+		// newNode is a root if node2 was a root, otherwise the root of node2 stays the root of the merged nodes
+		final int root = parent[newNode]==newNode ? newNode : ( node1==pNode ? nNode : pNode );
+		
+		// the leaves of pNode and nNode now share the same root
+		int setP = findSet(pLeaf);
+		int setN = findSet(nLeaf);
+		if( rootCacheRank[setP] < rootCacheRank[setN] ) {
+			final int tmp = setP;
+			setP = setN;
+			setN = tmp;
+		}
+		rootCacheParent[setN] = setP;
+		if( rootCacheRank[setP] == rootCacheRank[setN] )
+			rootCacheRank[setP]++;
+		rootCacheRoot[setP] = root;
+		
+		return root;
+	}
+	
+	
+	// root cache: a union-find over the nodes where each set gathers the nodes below the same root of the 
+	// tree under construction. Contrary to parent, it can be compressed, finding the root of a leaf is 
+	// amortized near constant instead of proportional to the depth of the leaf in the tree. 
+	
+	// representative of the set of node, with path halving
+	private int findSet(int node)
+	{
+		while( rootCacheParent[node] != node )
+		{
+			rootCacheParent[node] = rootCacheParent[ rootCacheParent[node] ];
+			node = rootCacheParent[node];
+		}
+		return node;
+	}
+	
+	
+	// same as findRoot(node, parent) using the root cache
+	private int findRootCached(int node)
+	{
+		return rootCacheRoot[ findSet(node) ];
+	}
+	
+	
+	// true if pos+dPos is inside the image
+	private static boolean isInBound(long[] pos, long[] dPos, long[] dimensions)
+	{
+		for( int d=0; d<dimensions.length; d++)
+		{
+			final long x = pos[d] + dPos[d];
+			if( x<0 || x>=dimensions[d] )
+				return false;
+		}
+		return true;
 	}
 	
 	
-	protected static void mergeNodes(int node1, int node2, int newNode, int[] parent, int[][] children)
+	// children is the flat children array, the children of node i are children[2*i] and children[2*i+1]
+	protected static void mergeNodes(int node1, int node2, int newNode, int[] parent, int[] children)
 	{
 		
 		// update children of parent(node1) if needed
 		int par1 = parent[node1];
 		if( par1 != node1){ // node1 is not a root
 			for(int i=0; i<2; i++){
-				if ( children[par1][i] == node1  ){
-					children[par1][i] = newNode;
+				if ( children[2*par1+i] == node1  ){
+					children[2*par1+i] = newNode;
 					parent[newNode] = par1;
 				}
 			}
@@ -784,16 +1685,16 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		int par2 = parent[node2];
 		if( par2 != node2){ // node2 is not a root
 			for(int i=0; i<2; i++){
-				if ( children[par2][i] == node2  ){	
-					children[par2][i] = newNode;
+				if ( children[2*par2+i] == node2  ){	
+					children[2*par2+i] = newNode;
 					parent[newNode] = par2;
 				}
 			}
 		}
 		parent[node1] = newNode;
 		parent[node2] = newNode;
-		children[newNode][0] = node1;
-		children[newNode][1] = node2;
+		children[2*newNode] = node1;
+		children[2*newNode+1] = node2;
 		
 		return;
 	}
@@ -848,18 +1749,18 @@ public class HWatershedLabeling<T extends RealType<T>> {
 		//impImgConverter.getImagePlus( maxTreeConstructor.labelMapDebug ).show();
 		
 		int[] parents = maxTreeConstructor.getTree().getParentsAsArray();
-		Map<Integer,Node> treeNodes = maxTreeConstructor.getTree().getNodes();
+		List<Node> treeNodes = maxTreeConstructor.getTree().getNodeList();
 		double[] dynamics =  maxTreeConstructor.getTree().getFeature("dynamics");
-		for( Node node : treeNodes.values())
+		for( Node node : treeNodes)
 		{
-			int id = node.getId();
+			int id = node.getNodeId();
 			int pId= id;
 			if ( node.getParent()!= null )
-				pId = node.getParent().getId();
+				pId = node.getParent().getNodeId();
 			
 			String str = "Id:"+id+"  ;  parent:"+pId+"  ;  children:";
 			for(Node nodeC : node.getChildren() )
-				str = str+nodeC.getId()+", ";
+				str = str+nodeC.getNodeId()+", ";
 			str = str+"  ;  dyn:"+dynamics[id];
 			System.out.println(str);
 		}
@@ -45,18 +45,22 @@ import ij.process.LUT;
 import net.imagej.ImageJ;
 import net.imagej.ops.AbstractOp;
 import net.imagej.ops.Op;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
-import net.imglib2.type.numeric.real.FloatType;
 
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Polarity;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.ProgressListener;
 
 
 
@@ -87,14 +91,24 @@ public class HWatershed_Plugin extends AbstractOp  {
 	@Parameter( label="Allow splitting", persist=false, required=false ) // with persist and required set to false the parameter become optional
 	private Boolean allowSplitting = true;
 	
+	@Parameter( label="Dark objects", persist=false, required=false, description="if checked the dark regions of the image are segmented" ) // with persist and required set to false the parameter become optional
+	private Boolean darkObjects = false;
 	
+	@Parameter( label="Use ROI as mask", persist=false, required=false, description="if checked only the pixels inside the area roi of the input are segmented" ) // with persist and required set to false the parameter become optional
+	private Boolean useRoiMask = false;
 	
-	FloatType min = new FloatType(Float.MAX_VALUE), max = new FloatType(Float.MIN_VALUE);
-	Img<FloatType> imgIN;
 	
-	private void computeMinMax(){
-		if( min.getRealFloat() > max.getRealFloat() )
-			ComputeMinMax.computeMinMax(imgIN, min, max);
+	
+	float min = Float.MAX_VALUE, max = Float.MIN_VALUE;
+	
+	private <T extends RealType<T>> void computeMinMax(Img<T> imgIN){
+		if( min > max ) {
+			T minT = imgIN.firstElement().createVariable();
+			T maxT = imgIN.firstElement().createVariable();
+			ComputeMinMax.computeMinMax(imgIN, minT, maxT);
+			min = minT.getRealFloat();
+			max = maxT.getRealFloat();
+		}
 	}
 	
 	@Override
@@ -104,7 +118,14 @@ public class HWatershed_Plugin extends AbstractOp  {
 			return;
 		}
 		
-		imgIN = ImageJFunctions.convertFloat(impIN); 
+		run_typed();
+	}
+	
+	
+	private <T extends RealType<T> & NativeType<T>> void run_typed() {
+		
+		// the input pixels are read in place, only the label map is allocated
+		Img<T> imgIN = Utils.wrapReal(impIN);
 		int nDims = imgIN.numDimensions();
 		if( nDims>3){
 			IJ.error("The Interactive Watershed plugin handles only graylevel 2D/3D images \n Current image has more dimensions." );
@@ -115,26 +136,31 @@ public class HWatershed_Plugin extends AbstractOp  {
 		
 		if ( hMin == null ){
 			// if hMin is not provided set it to 5% of the image range
-			computeMinMax();
-			hMin =  0.05f * ( max.getRealFloat() - min.getRealFloat() ) ;
+			computeMinMax(imgIN);
+			hMin =  0.05f * ( max - min ) ;
 		}
 		
+		// dark objects are segmented on the min-tree of the input, pixels above threshold are ignored
+		Polarity polarity = darkObjects ? Polarity.MINIMA : Polarity.MAXIMA;
+		
 		if ( thresh == null ){
-			// if thresh is not provided, set it to the minimum of the image
-			computeMinMax();
-			thresh = min.getRealFloat();
+			// if thresh is not provided, set it to the minimum of the image (maximum for dark objects)
+			computeMinMax(imgIN);
+			thresh = polarity==Polarity.MINIMA ? max : min;
 		}
 		
 		
 		
-		// build the segment tree
-		float threshold0 = Float.NEGATIVE_INFINITY; // we will flood the whole image in the first place
-		HWatershedLabeling<FloatType> segmentTreeConstructor = new HWatershedLabeling<FloatType>(imgIN, threshold0 , Connectivity.FACE);
+		// build the segment tree, if useRoiMask is set and the input has an area roi only the pixels inside the roi are flooded
+		float threshold0 = polarity==Polarity.MINIMA ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY; // we will flood the whole image in the first place
+		RandomAccessibleInterval<BitType> mask = useRoiMask ? Utils.getRoiMask(impIN, imgIN) : null;
+		HWatershedLabeling<T> segmentTreeConstructor = new HWatershedLabeling<T>(imgIN, mask, threshold0 , Connectivity.FACE, polarity);
+		segmentTreeConstructor.setProgressListener( ProgressListener.getDefault() );
 		Tree hSegmentTree = segmentTreeConstructor.getTree();
 		
-		// segment tree to label map  
-		Img<IntType> hSegmentMap = segmentTreeConstructor.getLabelMapMaxTree();
-		SegmentHierarchyToLabelMap<FloatType> segmentTreeLabeler = new SegmentHierarchyToLabelMap<FloatType>( hSegmentTree, hSegmentMap, imgIN );
+		// segment tree to label map, the flooding only covered the bounding box of the roi 
+		Img<IntType> hSegmentMap = segmentTreeConstructor.getCroppedLabelMap();
+		SegmentHierarchyToLabelMap<T> segmentTreeLabeler = new SegmentHierarchyToLabelMap<T>( hSegmentTree, hSegmentMap, imgIN, segmentTreeConstructor.getCropInterval(), polarity );
 		Img<IntType> imgOUT = segmentTreeLabeler.getLabelMap( hMin, thresh , peakFlooding, allowSplitting);
 		
 
@@ -0,0 +1,152 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import de.mpicbg.scf.InteractiveWatershed.imgTools.LongList;
+
+
+
+/**
+ * Hierarchical FIFO with the same contract as {@link HierarchicalFIFO} for the case where the number
+ * of elements that will be queued at each level is known in advance (i.e. each pixel is queued exactly once
+ * at its own gray level, as in the flooding of {@link HWatershedLabeling}).
+ * 
+ * The queue is a single int array laid out as in a counting sort: the elements of level l are stored
+ * in [start(l), start(l)+histogram[l]). Adding or polling an element is a sequential write or read in the
+ * level bucket, no resizing occurs and no object is allocated per level.
+ * The histogram must be exact, adding more elements to a level than announced fails.
+ * Elements added with addFirst are polled before the elements already in their level, they take their room
+ * in the level bucket, the elements already queued are shifted if needed.
+ * The total number of elements must be lower than 2^31, see {@link HierarchicalLongBucketFIFO} for larger images.
+ */
+public class HierarchicalBucketFIFO {
+	
+	private int current_level;
+	public int getCurrent_level() {
+		return current_level;
+	}
+
+
+	public int getMin() {
+		return min;
+	}
+
+	private final int min;
+	private int max_level;
+	private final int[] queue;	// elements of all levels, sorted by level
+	private final int[] start;	// the bucket of level l is [start[l], start[l+1]) 
+	private final int[] head;	// position of the next element to poll in each level
+	private final int[] tail;	// position of the next free slot in each level
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	
+	
+	/**
+	 * @param min the value of the lowest level
+	 * @param histogram histogram[l] is the number of elements that will be added with value min+l
+	 */
+	public HierarchicalBucketFIFO(int min, long[] histogram)
+	{
+		int nbin = histogram.length;
+		start = new int[nbin+1];
+		head = new int[nbin];
+		tail = new int[nbin];
+		long offset = 0;
+		for(int i=0; i<nbin; i++) {
+			start[i] = (int) offset;
+			head[i] = (int) offset;
+			tail[i] = (int) offset;
+			offset += histogram[i];
+			if( offset > MAX_ARRAY_SIZE )
+				throw new IllegalArgumentException("HierarchicalBucketFIFO: more than "+MAX_ARRAY_SIZE+" elements, use HierarchicalLongBucketFIFO");
+		}
+		start[nbin] = (int) offset;
+		queue = new int[(int) offset];
+		this.min = min;
+		this.max_level = nbin-1;
+		current_level = max_level;
+	}
+	
+	
+	public void add(long idx, int val)
+	{
+		final int level = val - min ;
+		if( tail[level] == start[level+1] )
+			throw new IllegalStateException("HierarchicalBucketFIFO: more elements added at value "+val+" than announced by the histogram");
+		queue[ tail[level]++ ] = (int) idx;
+		current_level = Math.max(current_level,level); // would crash if level>max_level
+	}
+	
+	// add elements before the elements of their level, they will be the next elements polled at that level, in the 
+	// order of the list. The elements already queued are shifted toward the end of the bucket if there is no room in front
+	public void addFirst(LongList elements, int val)
+	{
+		final int level = val - min ;
+		final int n = elements.size();
+		if( n==0 ) // the current level must not move to an empty level
+			return;
+		final int shift = n - (head[level] - start[level]);
+		if( shift > 0 )
+		{
+			if( tail[level] + shift > start[level+1] )
+				throw new IllegalStateException("HierarchicalBucketFIFO: more elements added at value "+val+" than announced by the histogram");
+			System.arraycopy(queue, head[level], queue, head[level]+shift, tail[level]-head[level]);
+			head[level] += shift;
+			tail[level] += shift;
+		}
+		head[level] -= n;
+		for( int k=0; k<n; k++)
+			queue[ head[level]+k ] = (int) elements.get(k);
+		current_level = Math.max(current_level,level);
+	}
+	
+	// number of elements queued at value val
+	public long size(int val)
+	{
+		return tail[val-min] - head[val-min];
+	}
+	
+	// i-th element queued at value val, without removing it
+	public long get(int val, long i)
+	{
+		return queue[ head[val-min] + (int)i ];
+	}
+	
+	public boolean HasNext()
+	{
+		while( head[current_level]==tail[current_level] & current_level>0)
+			current_level--;
+		
+		return head[current_level]!=tail[current_level];
+	}
+	
+	public long Next()
+	{	
+		return queue[ head[current_level]++ ];	
+	}
+	
+}
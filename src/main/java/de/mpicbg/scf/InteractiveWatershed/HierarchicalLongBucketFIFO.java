@@ -0,0 +1,142 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import de.mpicbg.scf.InteractiveWatershed.imgTools.LongList;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.PagedLongArray;
+
+
+
+/**
+ * Same as {@link HierarchicalBucketFIFO} for images with more than 2^31 pixels: the elements are long 
+ * indices stored in a {@link PagedLongArray} and the level buckets can hold more than 2^31 elements.
+ */
+public class HierarchicalLongBucketFIFO {
+	
+	private int current_level;
+	public int getCurrent_level() {
+		return current_level;
+	}
+
+
+	public int getMin() {
+		return min;
+	}
+
+	private final int min;
+	private int max_level;
+	private final PagedLongArray queue;	// elements of all levels, sorted by level
+	private final long[] start;	// the bucket of level l is [start[l], start[l+1]) 
+	private final long[] head;	// position of the next element to poll in each level
+	private final long[] tail;	// position of the next free slot in each level
+	
+	
+	/**
+	 * @param min the value of the lowest level
+	 * @param histogram histogram[l] is the number of elements that will be added with value min+l
+	 */
+	public HierarchicalLongBucketFIFO(int min, long[] histogram)
+	{
+		int nbin = histogram.length;
+		start = new long[nbin+1];
+		head = new long[nbin];
+		tail = new long[nbin];
+		long offset = 0;
+		for(int i=0; i<nbin; i++) {
+			start[i] = offset;
+			head[i] = offset;
+			tail[i] = offset;
+			offset += histogram[i];
+		}
+		start[nbin] = offset;
+		queue = new PagedLongArray(offset);
+		this.min = min;
+		this.max_level = nbin-1;
+		current_level = max_level;
+	}
+	
+	
+	public void add(long idx, int val)
+	{
+		final int level = val - min ;
+		if( tail[level] == start[level+1] )
+			throw new IllegalStateException("HierarchicalLongBucketFIFO: more elements added at value "+val+" than announced by the histogram");
+		queue.set( tail[level]++, idx );
+		current_level = Math.max(current_level,level); // would crash if level>max_level
+	}
+	
+	// add elements before the elements of their level, they will be the next elements polled at that level, in the 
+	// order of the list. The elements already queued are shifted toward the end of the bucket if there is no room in front
+	public void addFirst(LongList elements, int val)
+	{
+		final int level = val - min ;
+		final int n = elements.size();
+		if( n==0 ) // the current level must not move to an empty level
+			return;
+		final long shift = n - (head[level] - start[level]);
+		if( shift > 0 )
+		{
+			if( tail[level] + shift > start[level+1] )
+				throw new IllegalStateException("HierarchicalLongBucketFIFO: more elements added at value "+val+" than announced by the histogram");
+			for( long i=tail[level]-1; i>=head[level]; i--)
+				queue.set( i+shift, queue.get(i) );
+			head[level] += shift;
+			tail[level] += shift;
+		}
+		head[level] -= n;
+		for( int k=0; k<n; k++)
+			queue.set( head[level]+k, elements.get(k) );
+		current_level = Math.max(current_level,level);
+	}
+	
+	// number of elements queued at value val
+	public long size(int val)
+	{
+		return tail[val-min] - head[val-min];
+	}
+	
+	// i-th element queued at value val, without removing it
+	public long get(int val, long i)
+	{
+		return queue.get( head[val-min] + i );
+	}
+	
+	public boolean HasNext()
+	{
+		while( head[current_level]==tail[current_level] & current_level>0)
+			current_level--;
+		
+		return head[current_level]!=tail[current_level];
+	}
+	
+	public long Next()
+	{	
+		return queue.get( head[current_level]++ );	
+	}
+	
+}
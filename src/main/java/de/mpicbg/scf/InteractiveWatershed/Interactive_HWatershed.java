@@ -50,6 +50,7 @@ import ij.gui.ImageCanvas;
 import ij.gui.ImageRoi;
 import ij.gui.ImageWindow;
 import ij.gui.Overlay;
+import ij.gui.Roi;
 import ij.gui.ScrollbarWithLabel;
 import ij.measure.Calibration;
 import ij.plugin.LutLoader;
@@ -64,6 +65,8 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
@@ -83,6 +86,8 @@ import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
 
 import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Connectivity;
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Polarity;
+import de.mpicbg.scf.InteractiveWatershed.imgTools.ProgressListener;
 
 
 /**
@@ -101,6 +106,12 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	@Parameter(label = "Analyzed image" , visibility = ItemVisibility.MESSAGE, persist = false)
 	private String analyzedImageName = "test";
 	
+	@Parameter(label = "Dark objects", persist = false, description="if checked the dark regions of the image are segmented") // the tree is rebuilt when it is toggled
+	private Boolean darkObjects = false;
+	
+	@Parameter(label = "Use ROI as mask", persist = false, description="if checked only the pixels inside the area roi of the image are segmented") // the tree is rebuilt when it is toggled
+	private Boolean useRoiMask = false;
+	
 	@Parameter(style = NumberWidget.SCROLL_BAR_STYLE, persist = false, label="Seed dynamics", stepSize="1.0")
 	private Float hMin_;
 	
@@ -149,7 +160,8 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	
 	float minI, minDyn; 				// min and max intensity of the input image
 	int nDims; 						// dimensionality of the input image
-	SegmentHierarchyToLabelMap<FloatType> segmentTreeLabeler;
+	SegmentHierarchyToLabelMap<?> segmentTreeLabeler;
+	Roi maskRoi;					// area roi of imp0 used as mask by the current tree, null if the whole image is flooded
 
 	ImagePlus impSegmentationDisplay; // the result window interactively updated
 	ImagePlus imp_curSeg; // container of the current labelMap slice
@@ -198,7 +210,14 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 			return;
 		}
 		
-		Img<FloatType> input = ImageJFunctions.convertFloat(imp0); 
+		initialize_HWatershed_typed();
+	}
+	
+	
+	private <T extends RealType<T> & NativeType<T>> void initialize_HWatershed_typed() {
+		
+		// the input pixels are read in place, only the label map is allocated
+		Img<T> input = Utils.wrapReal(imp0);
 		nDims = input.numDimensions();
 		if( nDims>3){
 			IJ.error("The Interactive Watershed plugin handles only graylevel 2D/3D images \n Current image has more dimensions." );
@@ -215,58 +234,10 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		///////////////////////////////////////////////////////////////////////////
 		// create the HSegmentTree ////////////////////////////////////////////////
 		
-		float threshold = Float.NEGATIVE_INFINITY;
-		HWatershedLabeling<FloatType> segmentTreeConstructor = new HWatershedLabeling<FloatType>(input, threshold, Connectivity.FACE);
-		Tree hSegmentTree = segmentTreeConstructor.getTree();
-		Img<IntType> hSegmentMap = segmentTreeConstructor.getLabelMapMaxTree();
-		if ( hSegmentMap==null ){
-			initInterupted=true;
-			IJ.error("H-Watershed construction was manually interupted, please close the interactive watershed dialog.");
-			
-			// initialize analyzed image name  ////////////////////// 
-			analyzedImageName = "Initialisation was interupted, please close the plugin.";
-			final MutableModuleItem<String> AnalyzedImageItem = getInfo().getMutableInput("analyzedImageName", String.class);
-			AnalyzedImageItem.setValue(this, analyzedImageName );
-			
+		Tree hSegmentTree = buildTree_typed();
+		if( hSegmentTree == null )
 			return;
-		}
-		segmentTreeLabeler = new SegmentHierarchyToLabelMap<FloatType>( hSegmentTree, hSegmentMap, input );
-		
-		
-		
-
-		///////////////////////////////////////////////////////////////////////////
-		// Initialize the UI //////////////////////////////////////////////////////
-
-		double[] dynamics = hSegmentTree.getFeature("dynamics");
-		double[] maxima = hSegmentTree.getFeature("Imax");
-		
-		float maxI = (float) Arrays.stream(maxima).max().getAsDouble();
-		float maxDyn = (float) Arrays.stream(dynamics).max().getAsDouble();
-		minDyn = 0f;
-		minI = maxI-maxDyn;
-		
-		stepSize = Math.log(maxDyn+1)/sliderNStep ;
-		
-		// initialize analyzed image name  ////////////////////// 
-		final MutableModuleItem<String> AnalyzedImageItem = getInfo().getMutableInput("analyzedImageName", String.class);
-		AnalyzedImageItem.setValue(this, imp0.getTitle() );
-		
-		// initialize seed threshold (jMin) slider attributes ////////////////////// 
-		final MutableModuleItem<Float> thresholdItem = getInfo().getMutableInput("hMin_", Float.class);
-		thresholdItem.setMinimumValue( new Float(0) );
-		thresholdItem.setMaximumValue( new Float( maxDyn ));
-		//thresholdItem.setStepSize( 0.05);
-		hMin_ = 0f;
-		thresholdItem.setValue(this, hMin_);
 		
-		// initialize intensity threshold slider attributes ////////////////////////////
-		final MutableModuleItem<Float> thresholdItem2 = getInfo().getMutableInput("thresh_", Float.class);
-		thresholdItem2.setMinimumValue( new Float(minI) );
-		thresholdItem2.setMaximumValue( new Float( maxI ));
-		//thresholdItem2.setStepSize( 0.05);
-		thresh_ = minI;
-		thresholdItem2.setValue(this, thresh_);
 		
 		// initialize peak flooding (%) slider attributes ////////////////////////////
 		final MutableModuleItem<Float> thresholdItem3 = getInfo().getMutableInput("peakFlooding", Float.class);
@@ -309,6 +280,8 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		changed.put("peakFlooding", 	false);
 		changed.put("displayOrient",	false);
 		changed.put("allowSplitting",	false);
+		changed.put("darkObjects",		false);
+		changed.put("useRoiMask",		false);
 		
 		//System.out.println(displayOrientString + " : "+ displayOrient);
 		
@@ -319,6 +292,8 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		previous.put("thresh", 			(double)getThresh());
 		previous.put("peakFlooding", 	(double)peakFlooding);
 		previous.put("allowSplitting", (double)getallowSplitting());
+		previous.put("darkObjects", 	darkObjects ? 1.0 : 0.0);
+		previous.put("useRoiMask", 		useRoiMask ? 1.0 : 0.0);
 		
 		
 		
@@ -336,6 +311,83 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 	} // end of the initialization! 
 	
 	
+	
+	// build the tree of the bright or dark regions of imp0 and initialize the seed dynamics and threshold sliders 
+	// accordingly, returns null if the construction was interrupted
+	private <T extends RealType<T> & NativeType<T>> Tree buildTree_typed() {
+		
+		Img<T> input = Utils.wrapReal(imp0);
+		Polarity polarity = darkObjects ? Polarity.MINIMA : Polarity.MAXIMA;
+		float threshold = polarity==Polarity.MINIMA ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY; // flood the whole image
+		// the roi is kept so that the export records the mask the tree was built with
+		Roi roi = imp0.getRoi();
+		maskRoi = useRoiMask && roi!=null && roi.isArea() ? (Roi) roi.clone() : null;
+		RandomAccessibleInterval<BitType> mask = maskRoi==null ? null : Utils.getRoiMask(imp0, input);
+		HWatershedLabeling<T> segmentTreeConstructor = new HWatershedLabeling<T>(input, mask, threshold, Connectivity.FACE, polarity);
+		segmentTreeConstructor.setProgressListener( ProgressListener.getDefault() );
+		Tree hSegmentTree = segmentTreeConstructor.getTree();
+		Img<IntType> hSegmentMap = segmentTreeConstructor.getCroppedLabelMap();
+		if ( hSegmentMap==null ){
+			initInterupted=true;
+			IJ.error("H-Watershed construction was manually interupted, please close the interactive watershed dialog.");
+			
+			// initialize analyzed image name  ////////////////////// 
+			analyzedImageName = "Initialisation was interupted, please close the plugin.";
+			final MutableModuleItem<String> AnalyzedImageItem = getInfo().getMutableInput("analyzedImageName", String.class);
+			AnalyzedImageItem.setValue(this, analyzedImageName );
+			
+			return null;
+		}
+		segmentTreeLabeler = new SegmentHierarchyToLabelMap<T>( hSegmentTree, hSegmentMap, input, segmentTreeConstructor.getCropInterval(), polarity );
+		
+		
+		
+
+		///////////////////////////////////////////////////////////////////////////
+		// Initialize the UI //////////////////////////////////////////////////////
+
+		// the tree features are measured on -input for dark objects, the threshold slider is in image intensity
+		double[] dynamics = hSegmentTree.getFeature("dynamics");
+		double[] maxima = hSegmentTree.getFeature("Imax");
+		
+		float maxI = (float) Arrays.stream(maxima).max().getAsDouble();
+		float maxDyn = (float) Arrays.stream(dynamics).max().getAsDouble();
+		minDyn = 0f;
+		minI = maxI-maxDyn;
+		float sign = polarity.getSign();
+		
+		stepSize = Math.log(maxDyn+1)/sliderNStep ;
+		
+		// initialize analyzed image name  ////////////////////// 
+		final MutableModuleItem<String> AnalyzedImageItem = getInfo().getMutableInput("analyzedImageName", String.class);
+		AnalyzedImageItem.setValue(this, imp0.getTitle() );
+		
+		// initialize seed threshold (jMin) slider attributes ////////////////////// 
+		final MutableModuleItem<Float> thresholdItem = getInfo().getMutableInput("hMin_", Float.class);
+		thresholdItem.setMinimumValue( new Float(0) );
+		thresholdItem.setMaximumValue( new Float( maxDyn ));
+		//thresholdItem.setStepSize( 0.05);
+		hMin_ = 0f;
+		thresholdItem.setValue(this, hMin_);
+		
+		// initialize intensity threshold slider attributes ////////////////////////////
+		final MutableModuleItem<Float> thresholdItem2 = getInfo().getMutableInput("thresh_", Float.class);
+		thresholdItem2.setMinimumValue( new Float( Math.min(sign*minI, sign*maxI) ) );
+		thresholdItem2.setMaximumValue( new Float( Math.max(sign*minI, sign*maxI) ));
+		//thresholdItem2.setStepSize( 0.05);
+		thresh_ = sign*minI;
+		thresholdItem2.setValue(this, thresh_);
+		
+		return hSegmentTree;
+	}
+	
+	
+	// the type of the input is only known inside buildTree_typed
+	private boolean buildTree() {
+		return buildTree_typed() != null;
+	}
+	
+	
 	private float getHMin(){
 		//float val = (float)Math.exp(hMin_log * stepSize )+minDyn-1;
 		//System.out.println("hmin="+val);
@@ -475,8 +527,19 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 		
 		
 		
+		// a new tree is built when the polarity or the roi mask is toggled, it resets the seed dynamics and threshold sliders
+		if( changed.get("darkObjects") || changed.get("useRoiMask") )
+		{
+			if( !buildTree() ){
+				readyToFire = true;
+				return;
+			}
+			previous.put("hMin", 	(double)getHMin());
+			previous.put("thresh", 	(double)getThresh());
+		}
+		
 		// update labelMap slice to visualize
-		if( changed.get("hMin") || changed.get("thresh") || changed.get("pos") || changed.get("peakFlooding") || changed.get("allowSplitting") || changed.get("displayOrient"))
+		if( changed.get("darkObjects") || changed.get("useRoiMask") || changed.get("hMin") || changed.get("thresh") || changed.get("pos") || changed.get("peakFlooding") || changed.get("allowSplitting") || changed.get("displayOrient"))
 		{
 			Img<IntType> img_currentSegmentation = segmentTreeLabeler.getLabelMap( getHMin(), getThresh(), peakFlooding, allowSplitting, displayOrient, pos[displayOrient]-1);
 			RandomAccessibleInterval<IntType> rai_currentSegmentation =  Views.dropSingletonDimensions(img_currentSegmentation);
@@ -540,6 +603,16 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 			previous.put( "peakFlooding" , (double)peakFlooding );
 			wasChanged  = true;
 		}
+		else if( darkObjects != toBoolean(previous.get("darkObjects")) ){
+			changed.put("darkObjects",true);
+			previous.put( "darkObjects" , darkObjects ? 1.0 : 0.0 );
+			wasChanged  = true;
+		}
+		else if( useRoiMask != toBoolean(previous.get("useRoiMask")) ){
+			changed.put("useRoiMask",true);
+			previous.put( "useRoiMask" , useRoiMask ? 1.0 : 0.0 );
+			wasChanged  = true;
+		}
 		else if( allowSplitting != toBoolean(previous.get("allowSplitting")) ){
 			changed.put("allowSplitting",true);
 			previous.put( "allowSplitting" , (double)getallowSplitting() );
@@ -891,16 +964,21 @@ public class Interactive_HWatershed extends InteractiveCommand implements Previe
 			exported_imp.setDisplayRange(0,  nLabels , 0);
 		}
 		
+		// the recorded H_Watershed call reads the roi of the image, restore the one the tree was built with
+		boolean useRoiMask = maskRoi != null;
+		if( useRoiMask )
+			imp0.setRoi( (Roi) maskRoi.clone() );
+		
 		Recorder recorder =  Recorder.getInstance();  
 		if( recorder != null ){
 			if( !Recorder.scriptMode() ){
-				Recorder.record("run","H_Watershed", "impin=[" + imp0.getTitle() + "] hmin=" + hMin + " thresh=" + thresh + " peakflooding=" + peakFlooding+" outputmask="+outputMask + " allowsplitting="+allowSplitting );
+				Recorder.record("run","H_Watershed", "impin=[" + imp0.getTitle() + "] hmin=" + hMin + " thresh=" + thresh + " peakflooding=" + peakFlooding+" outputmask="+outputMask + " allowsplitting="+allowSplitting + " darkobjects="+darkObjects + " useroimask="+useRoiMask );
 			}
 			else{
 				Recorder.recordCall("# @ImagePlus impIN");
 				Recorder.recordCall("# @OpService ops");
 				Recorder.recordCall("# @OUTPUT ImagePlus impOUT");
-				Recorder.recordCall("impOUT = ops.run(\"H_Watershed\", impIN, "+hMin+", "+thresh+", "+peakFlooding + ", " + outputMask + ", " + allowSplitting + ")" );
+				Recorder.recordCall("impOUT = ops.run(\"H_Watershed\", impIN, "+hMin+", "+thresh+", "+peakFlooding + ", " + outputMask + ", " + allowSplitting + ", " + darkObjects + ", " + useRoiMask + ")" );
 			}
 		}
 		
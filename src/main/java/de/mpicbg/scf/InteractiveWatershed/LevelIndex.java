@@ -0,0 +1,194 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+import java.util.Arrays;
+
+
+
+/**
+ * Collects the distinct values of an image and maps each value to its rank among them (its level).
+ * Values are gathered in an open addressing hash set (float bits) which is sorted once when the levels 
+ * are requested. Memory and build time depend on the number of distinct values rather than on the numeric
+ * range of the image, up to about 11 bytes per distinct value. This pays off for integer-like data with 
+ * few distinct values. A float image can have as many distinct values as pixels, the index can then be 
+ * given a maximal size past which it stops collecting, see isFull(), and the caller sorts the values instead.
+ * NaN is not a valid level value and is ignored.
+ */
+public class LevelIndex {
+	
+	private static final int EMPTY = Float.floatToIntBits(Float.NaN);
+	
+	private int[] table;	// hash set of the float bits of the collected values
+	private int size = 0;
+	private final long maxSize;
+	private boolean isFull = false;
+	private float[] levels = null;
+	
+	
+	public LevelIndex()
+	{
+		this(Long.MAX_VALUE);
+	}
+	
+	
+	/**
+	 * @param maxSize the maximal number of distinct values, once more values are added the index is full
+	 */
+	public LevelIndex(long maxSize)
+	{
+		this.maxSize = maxSize;
+		table = new int[1024];
+		Arrays.fill(table, EMPTY);
+	}
+	
+	
+	/**
+	 * @param value a value to index, -0 is considered equal to 0
+	 */
+	public void add(float value)
+	{
+		if( value != value || isFull ) // NaN
+			return;
+		final int key = Float.floatToIntBits( value + 0f );
+		final int mask = table.length-1;
+		int slot = hash(key) & mask;
+		int k = table[slot];
+		while( k != EMPTY ) {
+			if( k == key )
+				return;
+			slot = (slot+1) & mask;
+			k = table[slot];
+		}
+		table[slot] = key;
+		size++;
+		levels = null;
+		if( size > maxSize ) {
+			// the collected values are dropped, the index is not usable anymore
+			isFull = true;
+			table = new int[0];
+			size = 0;
+		}
+		else if( 4*size > 3*table.length )
+			rehash();
+	}
+	
+	
+	/**
+	 * add all the values collected by another index, used to merge indexes built on parts of an image
+	 */
+	public void addAll(LevelIndex other)
+	{
+		if( other.isFull ) {
+			isFull = true;
+			table = new int[0];
+			size = 0;
+			levels = null;
+			return;
+		}
+		for( int k : other.table )
+			if( k != EMPTY )
+				add( Float.intBitsToFloat(k) );
+	}
+	
+	
+	/**
+	 * @return true if more than maxSize distinct values were added, the values were then not kept 
+	 */
+	public boolean isFull()
+	{
+		return isFull;
+	}
+	
+	
+	public int getNumLevels()
+	{
+		return size;
+	}
+	
+	
+	/**
+	 * @return the sorted distinct values collected so far
+	 */
+	public float[] getLevels()
+	{
+		if( isFull )
+			throw new IllegalStateException("LevelIndex: more than "+maxSize+" distinct values were added, the values were not kept");
+		if( levels == null ) {
+			levels = new float[size];
+			int count=0;
+			for( int k : table )
+				if( k != EMPTY )
+					levels[count++] = Float.intBitsToFloat(k);
+			Arrays.sort(levels);
+		}
+		return levels;
+	}
+	
+	
+	/**
+	 * @param value a value that was previously added
+	 * @return the rank of value among the sorted distinct values, a negative number if the value was not added
+	 * rk: concurrent calls are safe once getLevels() was called and no value is added anymore 
+	 */
+	public int getLevel(float value)
+	{
+		return Arrays.binarySearch( getLevels(), value + 0f );
+	}
+	
+	
+	private void rehash()
+	{
+		final int[] oldTable = table;
+		table = new int[ 2*oldTable.length ];
+		Arrays.fill(table, EMPTY);
+		final int mask = table.length-1;
+		for( int key : oldTable ) {
+			if( key == EMPTY )
+				continue;
+			int slot = hash(key) & mask;
+			while( table[slot] != EMPTY )
+				slot = (slot+1) & mask;
+			table[slot] = key;
+		}
+	}
+	
+	
+	private static int hash(int key)
+	{
+		// murmur3 finalizer, spread the float bits (mostly in the upper bits) over the whole int
+		int h = key;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+	
+}
@@ -0,0 +1,264 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+
+
+
+/**
+ * Attributes of the nodes of a max tree, accumulated while the tree is flooded: the pixels are added to their 
+ * leaf as they are dequeued, the bounding boxes of the leaves are measured on the final label map and the leaves 
+ * are then aggregated in their ancestors in a single pass over the tree. 
+ * The region of a node is the union of the pixels of the leaves of its subtree, as in a segment of the hierarchy.
+ * The attributes are exported as features of the tree:
+ * area (number of pixels), sum and sumOfSquares (of the pixel values), bboxMin&lt;d&gt; and bboxMax&lt;d&gt; 
+ * (the bounding box of the region, bounds included) and peak&lt;d&gt; (position of the regional maximum of the node).
+ */
+class NodeAttributes {
+	
+	private final int ndim;
+	private final long[] dimensions;
+	private long[] area;
+	private double[] sum;
+	private double[] sumOfSquares;
+	private long[] bboxMin; // bounding box of node i along dimension d at i*ndim+d 
+	private long[] bboxMax;
+	private long[] peakIdx; // index of the peak pixel, -1 if not known yet
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	
+	
+	/**
+	 * @param dimensions dimensions of the flooded label map
+	 * @param length initial number of nodes
+	 */
+	NodeAttributes(long[] dimensions, int length)
+	{
+		this.ndim = dimensions.length;
+		this.dimensions = dimensions.clone();
+		checkLength(length);
+		area = new long[length];
+		sum = new double[length];
+		sumOfSquares = new double[length];
+		bboxMin = new long[length*ndim];
+		bboxMax = new long[length*ndim];
+		peakIdx = new long[length];
+		init(0);
+	}
+	
+	
+	// the bounding boxes of length nodes are stored in int indexed arrays of length*ndim elements
+	private void checkLength(int length)
+	{
+		if( (long)length * ndim > MAX_ARRAY_SIZE )
+			throw new IllegalStateException("HWatershed: too many nodes to store their bounding box, disable the node attributes");
+	}
+	
+	
+	// initialize the nodes from index start to the end of the arrays
+	private void init(int start)
+	{
+		Arrays.fill(area, start, area.length, 0);
+		Arrays.fill(sum, start, sum.length, 0);
+		Arrays.fill(sumOfSquares, start, sumOfSquares.length, 0);
+		Arrays.fill(bboxMin, start*ndim, bboxMin.length, Long.MAX_VALUE);
+		Arrays.fill(bboxMax, start*ndim, bboxMax.length, Long.MIN_VALUE);
+		Arrays.fill(peakIdx, start, peakIdx.length, -1);
+	}
+	
+	
+	/**
+	 * grow the arrays to hold length nodes
+	 */
+	void grow(int length)
+	{
+		checkLength(length);
+		final int start = area.length;
+		area = Arrays.copyOf(area, length);
+		sum = Arrays.copyOf(sum, length);
+		sumOfSquares = Arrays.copyOf(sumOfSquares, length);
+		bboxMin = Arrays.copyOf(bboxMin, length*ndim);
+		bboxMax = Arrays.copyOf(bboxMax, length*ndim);
+		peakIdx = Arrays.copyOf(peakIdx, length);
+		init(start);
+	}
+	
+	
+	/**
+	 * add a pixel with value val to the node, its position is added by addPositions once the label map is final
+	 */
+	void addPixel(int node, double val)
+	{
+		area[node]++;
+		sum[node] += val;
+		sumOfSquares[node] += val*val;
+	}
+	
+	
+	/**
+	 * Add the positions of the pixels to the bounding box of their node, from a label map where each pixel 
+	 * holds the id of its leaf (after renumber) and 0 if it is not flooded. The positions are read from a 
+	 * localizing cursor in flat order, which updates them incrementally.
+	 */
+	void addPositions(RandomAccessibleInterval<IntType> labelMap)
+	{
+		final Cursor<IntType> cursor = Views.flatIterable(labelMap).localizingCursor();
+		while( cursor.hasNext() )
+		{
+			final int node = cursor.next().get();
+			if( node == 0 )
+				continue;
+			final int offset = node*ndim;
+			for( int d=0; d<ndim; d++)
+			{
+				final long pos = cursor.getLongPosition(d);
+				if( pos < bboxMin[offset+d] )
+					bboxMin[offset+d] = pos;
+				if( pos > bboxMax[offset+d] )
+					bboxMax[offset+d] = pos;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Renumber the nodes, node i becomes newId[i] for i in [1, nNodes], the arrays are resized to length.
+	 * The peak of the leaves is set from leafMaxIdx, the index of the last pixel of their regional maximum (-1 for the other nodes). 
+	 */
+	void renumber(int[] newId, int nNodes, int length, long[] leafMaxIdx)
+	{
+		final long[] oldArea = area;
+		final double[] oldSum = sum;
+		final double[] oldSumOfSquares = sumOfSquares;
+		final long[] oldBboxMin = bboxMin;
+		final long[] oldBboxMax = bboxMax;
+		checkLength(length);
+		area = new long[length];
+		sum = new double[length];
+		sumOfSquares = new double[length];
+		bboxMin = new long[length*ndim];
+		bboxMax = new long[length*ndim];
+		peakIdx = new long[length];
+		init(0);
+		
+		for( int i=1; i<=nNodes; i++)
+		{
+			final int node = newId[i];
+			area[node] = oldArea[i];
+			sum[node] = oldSum[i];
+			sumOfSquares[node] = oldSumOfSquares[i];
+			System.arraycopy(oldBboxMin, i*ndim, bboxMin, node*ndim, ndim);
+			System.arraycopy(oldBboxMax, i*ndim, bboxMax, node*ndim, ndim);
+			peakIdx[node] = leafMaxIdx[i];
+		}
+	}
+	
+	
+	/**
+	 * Aggregate the attributes of each node in its parent, the children being visited before their parent.
+	 * The peak of a node is the peak of its child with the highest Imax.
+	 */
+	void aggregate(Tree tree, double[] Imax)
+	{
+		final int[] order = tree.getBreadthFirstOrder();
+		final double[] peakVal = new double[area.length];
+		Arrays.fill(peakVal, Double.NEGATIVE_INFINITY);
+		for( int k=order.length-1; k>=0; k--)
+		{
+			final int node = order[k];
+			if( tree.isLeaf(node) )
+				peakVal[node] = Imax[node];
+			if( tree.isRoot(node) )
+				continue;
+			
+			final int p = tree.getParent(node);
+			area[p] += area[node];
+			sum[p] += sum[node];
+			sumOfSquares[p] += sumOfSquares[node];
+			for( int d=0; d<ndim; d++)
+			{
+				bboxMin[p*ndim+d] = Math.min(bboxMin[p*ndim+d], bboxMin[node*ndim+d]);
+				bboxMax[p*ndim+d] = Math.max(bboxMax[p*ndim+d], bboxMax[node*ndim+d]);
+			}
+			if( peakVal[node] > peakVal[p] )
+			{
+				peakVal[p] = peakVal[node];
+				peakIdx[p] = peakIdx[node];
+			}
+		}
+	}
+	
+	
+	/**
+	 * Set the attributes as features of the tree, the positions are shifted by origin. 
+	 * The bounding box and the peak of the nodes without pixels are set to origin.
+	 */
+	void setFeatures(Tree tree, long[] origin, FeatureColumn.Storage storage)
+	{
+		final int nNodes = tree.getNumNodes();
+		double[] values = new double[nNodes];
+		for( int i=0; i<nNodes; i++)
+			values[i] = area[i];
+		tree.setFeatureColumn("area", FeatureColumn.create(values, storage) );
+		tree.setFeatureColumn("sum", FeatureColumn.create(Arrays.copyOf(sum, nNodes), storage) );
+		tree.setFeatureColumn("sumOfSquares", FeatureColumn.create(Arrays.copyOf(sumOfSquares, nNodes), storage) );
+		
+		for( int d=0; d<ndim; d++)
+		{
+			values = new double[nNodes];
+			for( int i=0; i<nNodes; i++)
+				values[i] = origin[d] + ( area[i]>0 ? bboxMin[i*ndim+d] : 0 );
+			tree.setFeatureColumn("bboxMin"+d, FeatureColumn.create(values, storage) );
+			
+			values = new double[nNodes];
+			for( int i=0; i<nNodes; i++)
+				values[i] = origin[d] + ( area[i]>0 ? bboxMax[i*ndim+d] : 0 );
+			tree.setFeatureColumn("bboxMax"+d, FeatureColumn.create(values, storage) );
+		}
+		
+		double[][] peak = new double[ndim][nNodes];
+		for( int i=0; i<nNodes; i++)
+		{
+			long idx = Math.max(peakIdx[i], 0);
+			for( int d=0; d<ndim; d++)
+			{
+				peak[d][i] = origin[d] + idx % dimensions[d];
+				idx /= dimensions[d];
+			}
+		}
+		for( int d=0; d<ndim; d++)
+			tree.setFeatureColumn("peak"+d, FeatureColumn.create(peak[d], storage) );
+	}
+	
+}
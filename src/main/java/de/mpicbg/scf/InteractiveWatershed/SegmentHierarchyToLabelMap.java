@@ -27,13 +27,23 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 
 
 
+import java.util.function.IntPredicate;
+
 import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import net.imglib2.img.Img;
 
+import de.mpicbg.scf.InteractiveWatershed.HWatershedLabeling.Polarity;
+
 
 // if pos is updated tree labeling does not change
 // if hMin is updated the segmentMap slice is constant but still need to be relabeled. currently we don't keep a copy and have to redo the clicking
@@ -47,16 +57,21 @@ import net.imglib2.img.Img;
 public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 
 	Tree segmentTree0;
-	Img<IntType> segmentMap0;
-	Img<T> intensity0;
+	Img<IntType> segmentMap0; // label map of the crop
+	RandomAccessibleInterval<T> intensity0;
+	Interval crop0; // interval of intensity0 covered by segmentMap0
+	float sign; // -1 if the tree was built on the minima of intensity0, 1 otherwise
 	
 	HTreeLabeling treeLabeler;
+	HTreeLabeling.Session labelingSession; // the tree labeling of the successive label maps is updated when only hMin changes
+	IntPredicate nodeFilter; // segments failing the filter are set to 0, null to keep all the segments
 	
 	int nLabels; 			// the number of the label in the label map for the current H (defines the tree labeling) and Threshold
 	
 	
 	Img<IntType> segmentMap; // current hyperslice
-	IterableInterval<T> intensity; // current hyperslice
+	RandomAccessibleInterval<IntType> segmentMapCrop; // part of the current hyperslice covered by the crop, null if the hyperslice misses the crop
+	IterableInterval<T> intensity; // crop of the current hyperslice, in flat iteration order
 	
 	
 	
@@ -67,13 +82,46 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 	 * @param segmentMap0 a labelmap defining non overlapping region
 	 * @param intensity0 a graylevel image the same size as segmentMap0
 	 */
-	public SegmentHierarchyToLabelMap(Tree segmentTree, Img<IntType> segmentMap0, Img<T> intensity0 ){
+	public SegmentHierarchyToLabelMap(Tree segmentTree, Img<IntType> segmentMap0, RandomAccessibleInterval<T> intensity0 ){
+		
+		this(segmentTree, segmentMap0, intensity0, new FinalInterval(intensity0) );
+	}
+	
+	
+	/**
+	 * 
+	 * @param segmentTree a tree where each leaf correspond to a label in the segment map and each other not to a merging of these region
+	 * @param segmentMap0 a labelmap defining non overlapping region over the crop interval of intensity0
+	 * @param intensity0 a graylevel image, the label maps returned have its size
+	 * @param crop the interval of intensity0 covered by segmentMap0, pixels outside of it are set to 0 
+	 */
+	public SegmentHierarchyToLabelMap(Tree segmentTree, Img<IntType> segmentMap0, RandomAccessibleInterval<T> intensity0, Interval crop ){
+		
+		this(segmentTree, segmentMap0, intensity0, crop, Polarity.MAXIMA );
+	}
+	
+	
+	/**
+	 * 
+	 * @param segmentTree a tree where each leaf correspond to a label in the segment map and each other not to a merging of these region
+	 * @param segmentMap0 a labelmap defining non overlapping region over the crop interval of intensity0
+	 * @param intensity0 a graylevel image, the label maps returned have its size
+	 * @param crop the interval of intensity0 covered by segmentMap0, pixels outside of it are set to 0 
+	 * @param polarity the polarity used to build the tree, with MINIMA the pixels above threshold are set to 0 
+	 */
+	public SegmentHierarchyToLabelMap(Tree segmentTree, Img<IntType> segmentMap0, RandomAccessibleInterval<T> intensity0, Interval crop, Polarity polarity ){
+		
+		if( !Intervals.equalDimensions(segmentMap0, crop) || !Intervals.contains(intensity0, crop) )
+			throw new IllegalArgumentException("SegmentHierarchyToLabelMap: the segment map must have the size of the crop and the crop must lie in the intensity image");
 		
 		this.segmentTree0 = segmentTree;
 		this.segmentMap0 = segmentMap0;
 		this.intensity0 = intensity0;
+		this.crop0 = new FinalInterval(crop);
+		this.sign = polarity.getSign();
 		
 		treeLabeler = new HTreeLabeling(segmentTree);
+		labelingSession = treeLabeler.newSession();
 		
 	}
 	
@@ -83,25 +131,30 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 	}
 	
 	
+	/**
+	 * Set a filter on the segments of the next label maps, e.g. a FeatureFilter on the area of the nodes.
+	 * The filter is evaluated on the tree nodes, the image is not revisited. To change the filter, set a new one:
+	 * a FeatureFilter is immutable, any other predicate must not change its result while it is set.
+	 * @param nodeFilter a predicate on the node ids of the tree, null to keep all the segments 
+	 */
+	public void setNodeFilter(IntPredicate nodeFilter) {
+		this.nodeFilter = nodeFilter;
+	}
+	
+	
 	/**
 	 * Relabel the label map according to the tree labeling.
-	 * @param threshold , all pixel below threshold are set to 0 
+	 * @param threshold , all pixel below threshold are set to 0 (above threshold if the tree polarity is MINIMA)
 	 * @param percentFlooding , percent of the peak that will be flooded  (percent between label maximum and the threshold) 
 	 * @return a label image corresponding to the current tree labeling, threshold, percentFlooding parameters
 	 */
 	public Img<IntType> getLabelMap( float hMin, float threshold, float percentFlooding, boolean keepOrphanPeak){
 		
-		intensity = (IterableInterval<T>) intensity0;
+		intensity = Views.flatIterable( Views.interval(intensity0, crop0) );
 		
-		int nDims = segmentMap0.numDimensions();
-		long[] dims = new long[nDims];
-		segmentMap0.dimensions(dims);
-		segmentMap = segmentMap0.factory().create(dims, segmentMap0.firstElement().createVariable() );
-		Cursor<IntType> cursor = segmentMap.cursor();
-		Cursor<IntType> cursor0 = segmentMap0.cursor();
-		while(cursor0.hasNext()){
-			cursor.next().set( cursor0.next().get() );
-		}
+		segmentMap = createLabelMap( Intervals.dimensionsAsLongArray(intensity0) );
+		segmentMapCrop = Views.interval(segmentMap, crop0);
+		copy( segmentMap0, segmentMapCrop );
 		
 		
 		Img<IntType> labelMap = fillLabelMap2(hMin, threshold, percentFlooding, keepOrphanPeak);
@@ -113,7 +166,7 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 	
 	/**
 	 * Relabel a particular slice of the label map according to the tree labeling.	
-	 * @param threshold , all pixel below threshold are set to 0 
+	 * @param threshold , all pixel below threshold are set to 0 (above threshold if the tree polarity is MINIMA)
 	 * @param percentFlooding , percent of the peak that will be flooded  (percent between label maximum and the threshold) 
 	 * @param dim , dimension along which the slice will be cut
 	 * @param pos , position of the slice on long the dimension
@@ -126,37 +179,43 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 		if (nDims>2)
 		{	
 			long[] dimensions = new long[nDims];
-			segmentMap0.dimensions(dimensions);
+			intensity0.dimensions(dimensions);
 			long[] newDimensions = new long[nDims-1];
+			long[] cropMin = new long[nDims-1];
+			long[] cropMax = new long[nDims-1];
 			int count = 0;
 			for ( int d = 0; d < nDims ; ++d )
 			{
 				if(d!=dim){
 					newDimensions[count] = dimensions[d];
+					cropMin[count] = crop0.min(d);
+					cropMax[count] = crop0.max(d);
 					count++;
 				}
 				//else
 					//newDimensions[d] = 1;
 			}
-			segmentMap = segmentMap0.factory().create(newDimensions, segmentMap0.firstElement().createVariable());
-			Cursor<IntType> cursor = segmentMap.cursor();
-			Cursor<IntType> cursor0 = Views.hyperSlice(segmentMap0, dim, pos).cursor();
+			segmentMap = createLabelMap( newDimensions );
 			
-			while ( cursor.hasNext() )
-				cursor.next().set( cursor0.next().get() );
-			
-			intensity = (IterableInterval<T>) Views.hyperSlice(intensity0, dim, pos);
+			// a slice outside of the crop stays at 0, the tree labeling is still updated for getNLabels()
+			if( pos >= crop0.min(dim) && pos <= crop0.max(dim) )
+			{
+				FinalInterval sliceCrop = new FinalInterval(cropMin, cropMax);
+				segmentMapCrop = Views.interval(segmentMap, sliceCrop);
+				copy( Views.hyperSlice(segmentMap0, dim, pos-crop0.min(dim)), segmentMapCrop );
+				intensity = Views.flatIterable( Views.interval( Views.hyperSlice(intensity0, dim, pos), sliceCrop) );
+			}
+			else
+			{
+				segmentMapCrop = null;
+				intensity = null;
+			}
 		}
 		else{
-			long[] dims = new long[nDims];
-			segmentMap0.dimensions(dims);
-			segmentMap = segmentMap0.factory().create(dims, segmentMap0.firstElement().createVariable() );
-			Cursor<IntType> cursor = segmentMap.cursor();
-			Cursor<IntType> cursor0 = segmentMap0.cursor();
-			while(cursor0.hasNext()){
-				cursor.next().set( cursor0.next().get() );
-			}
-			intensity = (IterableInterval<T>) intensity0;
+			segmentMap = createLabelMap( Intervals.dimensionsAsLongArray(intensity0) );
+			segmentMapCrop = Views.interval(segmentMap, crop0);
+			copy( segmentMap0, segmentMapCrop );
+			intensity = Views.flatIterable( Views.interval(intensity0, crop0) );
 		}
 		
 		Img<IntType> labelMap = fillLabelMap2( hMin, threshold, percentFlooding, keepOrphanPeak);
@@ -169,39 +228,59 @@ public class SegmentHierarchyToLabelMap <T extends RealType<T>> {
 	protected Img<IntType> fillLabelMap2( float hMin, float threshold, float percentFlooding, boolean keepOrphanPeak ){
 		
 		
-		int nNodes = segmentTree0.getNumNodes();
-		int[] nodeIdToLabel = new int[nNodes];
-		int[] nodeIdToLabelRoot = new int[nNodes];
-		double[] peakThresholds = new double[nNodes];
+		// the tree features are measured on sign*intensity
+		threshold = sign * threshold;
+		
+		// the session keeps the labeling of the tree, only the nodes whose label changed are visited
+		final HTreeLabeling.Session labeling = labelingSession;
+		this.nLabels = labeling.label(hMin, threshold, percentFlooding, keepOrphanPeak, nodeFilter);
 		
-		this.nLabels = treeLabeler.getLabeling(hMin, threshold, percentFlooding, keepOrphanPeak, nodeIdToLabel, nodeIdToLabelRoot, peakThresholds);
+		if( segmentMapCrop == null )
+			return segmentMap;
 		
-		Cursor<IntType> cursor = segmentMap.cursor();
+		// both images are browsed in flat order, their storage (Array, Planar, Cell) might differ
+		Cursor<IntType> cursor = Views.flatIterable( segmentMapCrop ).cursor();
 		Cursor<T> cursorImg = intensity.cursor();
 		while( cursor.hasNext() )
 		{
 			T imgPixel = cursorImg.next();
-			float val =imgPixel.getRealFloat();
+			float val = sign * imgPixel.getRealFloat();
 			
 			IntType pixel = cursor.next();
 			if(  val >= threshold )
 			{
-				final int nodeId = (int)pixel.getRealFloat();
-				final int labelRoot = nodeIdToLabelRoot[nodeId];
-				if(  val >= peakThresholds[labelRoot]  )
-				{	
-					final int label = nodeIdToLabel[nodeId];
-					pixel.setReal( (float)label );
-				}
+				final int nodeId = pixel.get();
+				final int label = labeling.getLabel(nodeId);
+				if(  label > 0  &&  val >= labeling.getPeakThreshold(nodeId)  )
+					pixel.set( label );
 				else
-					pixel.setReal( 0.0 );
+					pixel.set( 0 );
 			}
 			else
-				pixel.setReal( 0.0 );
+				pixel.set( 0 );
 		}
 		return segmentMap;
 		
 	}
 	
 	
+	
+	// the output may be larger than segmentMap0, which only covers the crop, its storage is chosen from its own size
+	private static Img<IntType> createLabelMap( long[] dimensions ){
+		
+		return Util.getArrayOrCellImgFactory( new FinalDimensions(dimensions), new IntType() ).create( dimensions, new IntType() );
+	}
+	
+	
+		// copy source in target, both have the same dimensions but may differ in their min
+	private static void copy( RandomAccessibleInterval<IntType> source, RandomAccessibleInterval<IntType> target ){
+		
+		Cursor<IntType> cursor = Views.flatIterable( target ).cursor();
+		Cursor<IntType> cursor0 = Views.flatIterable( source ).cursor();
+		while(cursor0.hasNext()){
+			cursor.next().set( cursor0.next().get() );
+		}
+	}
+	
+	
 }
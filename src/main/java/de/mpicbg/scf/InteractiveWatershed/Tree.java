@@ -27,31 +27,46 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 
 
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+
+/**
+ * A forest stored in primitive arrays: node i has parent parent[i] (roots point to themselves) and its children 
+ * are childIndex[childStart[i]] to childIndex[childStart[i+1]-1]. The node ids are the array indexes. 
+ * Node objects are only created on demand as views of these arrays.
+ */
 public class Tree {
 	
-	Map<Integer, Node> nodes;
-	List<Node> roots;
-	List<Node> leaves;
-	int numNodes=0;
-	HashMap<String, double[]> features;
+	final int numNodes;
+	final int[] parent;
+	final int[] childStart;
+	final int[] childIndex;
+	final int[] roots;
+	final int[] leaves;
+	final HashMap<String, FeatureColumn> features;
 	
+	// traversal orders, built with the tree so that a tree can be read from several threads
+	final int[] breadthFirstOrder; // node ids in breadth first order from the roots, a parent comes before its children
+	final int[] preOrder; // node ids in depth first pre-order, the subtree of node i is preOrder[preIndex[i]] to preOrder[subtreeEnd[i]-1]
+	final int[] preIndex;
+	final int[] subtreeEnd;
+	final int[] leavesInPreOrder;
+	final int[] leafCount; // number of leaves in preOrder[0] to preOrder[k-1], the leaves of the subtree of i are leavesInPreOrder[leafCount[preIndex[i]]] to leavesInPreOrder[leafCount[subtreeEnd[i]]-1]
 	
-	boolean updated=false;
 	
 	/**
 	 * build an empty tree
 	 */
 	public Tree(){
-		this.numNodes = 0;
-		this.nodes = new HashMap<Integer, Node>();
-		this.roots = new ArrayList<Node>();
-		this.leaves = new ArrayList<Node>();
-		this.features = new HashMap<String,double[]>();
+		this(new int[0], new int[0]);
 	}
 	
 
@@ -59,36 +74,184 @@ public class Tree {
 
 	/**
 	 * Adhoc constructor for the tree build by MaxTreeConstruction class
-	 * @param parent, parent of node i is given by parent[i], root point to themselves
+	 * @param parent, parent of node i is given by parent[i], root point to themselves. The array is not copied
 	 * @param children, children of node i is given by children[i], leaves point to -1
 	 */
 	public Tree( int[] parent, int[][] children){
 		
+		this(parent, getChildStart(parent.length, children), getChildIndex(parent.length, children));
+	}
+	
+	
+	
+	/**
+	 * Constructor for the tree build by HWatershedLabeling, each node has at most 2 children
+	 * @param parent, parent of node i is given by parent[i], root point to themselves. The array is not copied
+	 * @param children, flat children array of size 2*parent.length, children of node i are children[2*i] 
+	 * 		  and children[2*i+1], missing children are -1
+	 */
+	public Tree( int[] parent, int[] children){
+		
+		this(parent, getChildStart(parent.length, children), getChildIndex(parent.length, children));
+	}
+	
+	
+	
+	// keep the parent array and build the roots, the leaves and the traversal orders
+	private Tree( int[] parent, int[] childStart, int[] childIndex ){
+		
 		this.numNodes = parent.length;
-		this.nodes = new HashMap<Integer, Node>(); 
-		this.roots = new ArrayList<Node>();
-		this.leaves = new ArrayList<Node>();
-		this.features = new HashMap<String,double[]>();
+		this.parent = parent;
+		this.childStart = childStart;
+		this.childIndex = childIndex;
+		this.features = new HashMap<String,FeatureColumn>();
 		
+		int nRoots = 0;
+		int nLeaves = 0;
 		for( int i=0; i<numNodes; i++)
-			nodes.put(i, new Node(i) );
+		{
+			if( isRoot(i) )
+				nRoots++;
+			if( isLeaf(i) )
+				nLeaves++;
+		}
+		roots = new int[nRoots];
+		leaves = new int[nLeaves];
+		nRoots = 0;
+		nLeaves = 0;
+		for( int i=0; i<numNodes; i++)
+		{
+			if( isRoot(i) )
+				roots[nRoots++] = i;
+			if( isLeaf(i) )
+				leaves[nLeaves++] = i;
+		}
+		
+		// breadth first order
+		final int[] order = new int[numNodes];
+		int tail = 0;
+		for( int root : roots )
+			order[tail++] = root;
+		for( int head=0; head<tail; head++ )
+		{
+			final int node = order[head];
+			for( int k=childStart[node]; k<childStart[node+1]; k++ )
+				order[tail++] = childIndex[k];
+		}
+		breadthFirstOrder = order;
+		
+		// number the nodes in depth first pre-order, the subtree of each node is then a range of that order 
+		// subtree sizes, from the leaves to the roots
+		final int[] size = new int[numNodes];
+		for( int i=numNodes-1; i>=0; i-- )
+		{
+			final int node = order[i];
+			size[node]++;
+			if( !isRoot(node) )
+				size[parent[node]] += size[node];
+		}
+		
+		// the children of a node follow it in the order of the children list
+		final int[] index = new int[numNodes];
+		int next = 0;
+		for( int root : roots )
+		{
+			index[root] = next;
+			next += size[root];
+		}
+		for( int node : order )
+		{
+			int childIndexStart = index[node]+1;
+			for( int k=childStart[node]; k<childStart[node+1]; k++ )
+			{
+				index[childIndex[k]] = childIndexStart;
+				childIndexStart += size[childIndex[k]];
+			}
+		}
 		
+		final int[] pre = new int[numNodes];
+		for( int node=0; node<numNodes; node++ )
+		{
+			pre[index[node]] = node;
+			size[node] += index[node]; // the size becomes the end of the subtree range
+		}
+		
+		final int[] count = new int[numNodes+1];
+		final int[] leavesPre = new int[nLeaves];
+		for( int k=0; k<numNodes; k++ )
+		{
+			count[k+1] = count[k];
+			if( isLeaf(pre[k]) )
+				leavesPre[count[k+1]++] = pre[k];
+		}
+		
+		preIndex = index;
+		subtreeEnd = size;
+		leavesInPreOrder = leavesPre;
+		leafCount = count;
+		preOrder = pre;
+	}
+	
+	
+	// offsets of the children of each node in childIndex, from children lists where -1 is not a child
+	private static int[] getChildStart(int numNodes, int[][] children)
+	{
+		final int[] start = new int[numNodes+1];
 		for( int i=0; i<numNodes; i++)
 		{
-			Node node = nodes.get(i);
-			int nodeParent = parent[i];
-			if( nodeParent != i )
-				node.setParent( nodes.get(nodeParent) );
-			
-			List<Node> childrenList = new ArrayList<Node>();
+			start[i+1] = start[i];
 			for( int c : children[i] )
 				if( c>=0 )
-					childrenList.add(nodes.get(c));
-			node.setChildren(childrenList);
+					start[i+1]++;
 		}
-		
-		update();
-		
+		return start;
+	}
+	
+	
+	private static int[] getChildIndex(int numNodes, int[][] children)
+	{
+		int n = 0;
+		for( int i=0; i<numNodes; i++)
+			for( int c : children[i] )
+				if( c>=0 )
+					n++;
+		final int[] index = new int[n];
+		int k = 0;
+		for( int i=0; i<numNodes; i++)
+			for( int c : children[i] )
+				if( c>=0 )
+					index[k++] = c;
+		return index;
+	}
+	
+	
+	// same as above for a flat array with 2 children per node
+	private static int[] getChildStart(int numNodes, int[] children)
+	{
+		final int[] start = new int[numNodes+1];
+		for( int i=0; i<numNodes; i++)
+		{
+			start[i+1] = start[i];
+			for( int j=2*i; j<2*i+2; j++ )
+				if( children[j]>=0 )
+					start[i+1]++;
+		}
+		return start;
+	}
+	
+	
+	private static int[] getChildIndex(int numNodes, int[] children)
+	{
+		int n = 0;
+		for( int j=0; j<2*numNodes; j++ )
+			if( children[j]>=0 )
+				n++;
+		final int[] index = new int[n];
+		int k = 0;
+		for( int j=0; j<2*numNodes; j++ )
+			if( children[j]>=0 )
+				index[k++] = children[j];
+		return index;
 	}
 	
 	
@@ -105,36 +268,148 @@ public class Tree {
 	}
 	
 	
-	protected void update()
+	public boolean isLeaf(int node)
 	{
-		if( updated )
-			return;
-		
-		for(Node node : nodes.values() )
-		{
-			if( isRoot(node) )
-				roots.add(node);
-			if( isLeaf(node) )
-				leaves.add(node);
-		}
-		updated=true;
+		return childStart[node+1] == childStart[node];
+	}
+	
+	
+	public boolean isRoot(int node)
+	{
+		return parent[node] == node;
 	}
 	
 	
+	/**
+	 * @return the parent of node, a root is its own parent
+	 */
+	public int getParent(int node)
+	{
+		return parent[node];
+	}
+	
+	
+	public int getNumChildren(int node)
+	{
+		return childStart[node+1] - childStart[node];
+	}
+	
+	
+	/**
+	 * @return the k-th child of node, 0 <= k < getNumChildren(node)
+	 */
+	public int getChild(int node, int k)
+	{
+		return childIndex[ childStart[node] + k ];
+	}
+	
+	
+	/**
+	 * @return the node ids in breadth first order, roots first, a parent always comes before its children. 
+	 * The array must not be modified
+	 */
+	public int[] getBreadthFirstOrder() {
+		return breadthFirstOrder;
+	}
+	
+	
+	/**
+	 * @return the node ids in depth first pre-order, the subtree of a node occupies the range 
+	 * [getPreOrderIndex(node), getPreOrderIndex(node)+getSubtreeSize(node)) of that array. 
+	 * The array must not be modified
+	 */
+	public int[] getPreOrder() {
+		return preOrder;
+	}
+	
+	
+	public int getPreOrderIndex(int node) {
+		return preIndex[node];
+	}
+	
 	
+	/**
+	 * @return the number of nodes in the subtree of node, node included 
+	 */
+	public int getSubtreeSize(int node) {
+		return subtreeEnd[node] - preIndex[node];
+	}
+	
+	
+	/**
+	 * @return true if node is ancestor or one of its descendants 
+	 */
+	public boolean isInSubtree(int node, int ancestor) {
+		return preIndex[node] >= preIndex[ancestor] && preIndex[node] < subtreeEnd[ancestor];
+	}
+	
+	
+	/**
+	 * @return the leaves in depth first pre-order, the leaves of a subtree occupy the range 
+	 * [getSubtreeLeavesStart(node), getSubtreeLeavesEnd(node)) of that array. 
+	 * The array must not be modified
+	 */
+	public int[] getLeavesInPreOrder() {
+		return leavesInPreOrder;
+	}
+	
+	
+	public int getSubtreeLeavesStart(int node) {
+		return leafCount[ preIndex[node] ];
+	}
+	
+	
+	public int getSubtreeLeavesEnd(int node) {
+		return leafCount[ subtreeEnd[node] ];
+	}
+	
+	
+	
+	/**
+	 * @return a view of the nodes, the node with id i is at index i
+	 */
+	public List<Node> getNodeList() {
+		return new NodeList( null, 0, numNodes );
+	}
+	
+	
+	/**
+	 * @return a read only view of the nodes keyed by their id
+	 * @deprecated use getNodeList() or getNode(int), this map boxes every id it returns
+	 */
+	@Deprecated
 	public Map<Integer, Node> getNodes() {
-		return nodes;
+		return new NodeMap();
+	}
+	
+	
+	public Node getNode(int id) {
+		return new Node(id);
 	}
 
 
 	public List<Node> getRoots() {
-		update();
-		return roots;
+		return new NodeList( roots, 0, roots.length );
 	}
 
 
 	public List<Node> getLeaves() {
-		update();
+		return new NodeList( leaves, 0, leaves.length );
+	}
+	
+	
+	/**
+	 * @return the ids of the roots in increasing order, the array must not be modified
+	 */
+	public int[] getRootIds() {
+		return roots;
+	}
+	
+	
+	/**
+	 * @return the ids of the leaves in increasing order, the array must not be modified
+	 */
+	public int[] getLeafIds() {
 		return leaves;
 	}
 
@@ -144,92 +419,180 @@ public class Tree {
 	}
 	
 	
+	/**
+	 * @return the features as double arrays, see getFeature
+	 */
 	public HashMap<String,double[]> getFeatures() { 
-		return features; 
+		HashMap<String,double[]> featureArrays = new HashMap<String,double[]>();
+		for( String feat : features.keySet() )
+			featureArrays.put(feat, getFeature(feat));
+		return featureArrays; 
 	}
 	
 	
+	/**
+	 * @return the values of the feature as a double array, null if the tree has no such feature. 
+	 * For a feature stored in double precision this is the storage array itself, otherwise a copy.
+	 */
 	public double[] getFeature(String feat) {
-		return features.get(feat);
+		FeatureColumn column = features.get(feat);
+		return column==null ? null : column.toDoubleArray();
 	}
 	
 	
 	public void setFeature(String feat, double[] value) {
-		features.put(feat, value);
+		features.put(feat, FeatureColumn.create(value, FeatureColumn.Storage.DOUBLE) );
+	}
+	
+	
+	public FeatureColumn getFeatureColumn(String feat) {
+		return features.get(feat);
+	}
+	
+	
+	public void setFeatureColumn(String feat, FeatureColumn column) {
+		features.put(feat, column);
 	}
 	
 	
 	public int[] getParentsAsArray()
 	{
-		int[] parent = new int[this.numNodes];
-		for(Node node : nodes.values() )
-		{	
-			int id = node.getId();
-			if( Tree.isRoot(node) )
-			{
-				parent[id] = id;
-			}
-			else
-			{
-				parent[id] = node.getParent().getId();
-			}
+		return parent.clone();
+	}
+	
+	
+	
+	// list of node views over ids[start, end), or over the node ids themselves if ids is null
+	private class NodeList extends AbstractList<Node>
+	{
+		final int[] ids;
+		final int start;
+		final int end;
+		
+		NodeList(int[] ids, int start, int end)
+		{
+			this.ids = ids;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public Node get(int index) {
+			if( index<0 || index>=end-start )
+				throw new IndexOutOfBoundsException("Index: "+index+", Size: "+(end-start));
+			return new Node( ids==null ? start+index : ids[start+index] );
+		}
+		
+		@Override
+		public int size() {
+			return end-start;
 		}
-			
-		return parent;
 	}
 	
 	
-	public class Node
+	
+	// read only map view of the nodes keyed by id, kept for the callers of getNodes()
+	private class NodeMap extends AbstractMap<Integer, Node>
 	{
-		Integer id;
-		Node parent;
-		List<Node> children;
-		boolean flag= false;
-		float decoration=0;
-		int labelRoot = 0;
-		public int finalLabel = 0;
+		@Override
+		public Node get(Object key) {
+			return containsKey(key) ? new Node( (Integer)key ) : null;
+		}
 		
-		public float getDecoration() {
-			return decoration;
+		@Override
+		public boolean containsKey(Object key) {
+			if( !(key instanceof Integer) )
+				return false;
+			int id = (Integer)key;
+			return id>=0 && id<numNodes;
 		}
-
-		public void setDecoration(float decoration) {
-			this.decoration = decoration;
+		
+		@Override
+		public int size() {
+			return numNodes;
 		}
-
-		public Node(int id)
+		
+		@Override
+		public Set<Map.Entry<Integer, Node>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, Node>>() {
+				
+				@Override
+				public Iterator<Map.Entry<Integer, Node>> iterator() {
+					return new Iterator<Map.Entry<Integer, Node>>() {
+						int next = 0;
+						
+						@Override
+						public boolean hasNext() {
+							return next < numNodes;
+						}
+						
+						@Override
+						public Map.Entry<Integer, Node> next() {
+							if( next >= numNodes )
+								throw new NoSuchElementException();
+							Node node = new Node( next++ );
+							return new AbstractMap.SimpleImmutableEntry<Integer, Node>( node.id, node );
+						}
+					};
+				}
+				
+				@Override
+				public int size() {
+					return numNodes;
+				}
+			};
+		}
+	}
+	
+	
+	
+	/**
+	 * Lightweight view of a node of the tree, two views of the same node are equal
+	 */
+	public class Node
+	{
+		final int id;
+		
+		Node(int id)
 		{
 			this.id = id;
-			this.parent = null;
-			this.children = new ArrayList<Node>();
 		}
 		
 		public Node getParent() {
-			return parent;
+			return isRoot(id) ? null : new Node( parent[id] );
 		}
 		
-		public void setParent(Node parent) {
-			this.parent = parent;
+		public int getNodeId() {
+			return id;
 		}
 		
-		public boolean getFlag() {
-			return flag;
-		}
-
-		public void setFlag(boolean flag) {
-			this.flag = flag;
-		}
-
+		/**
+		 * @deprecated use getNodeId(), this boxes the id
+		 */
+		@Deprecated
 		public Integer getId() {
 			return id;
 		}
 		
 		public List<Node> getChildren() {
-			return children;
+			return new NodeList( childIndex, childStart[id], childStart[id+1] );
+		}
+		
+		private Tree getTree() {
+			return Tree.this;
 		}
 		
-		public void setChildren(List<Node> children) {
-			this.children = children;
+		@Override
+		public boolean equals(Object obj) {
+			if( !(obj instanceof Node) )
+				return false;
+			Node node = (Node)obj;
+			return node.id == id && node.getTree() == Tree.this;
+		}
+		
+		@Override
+		public int hashCode() {
+			return id;
 		}
 	}
 	
@@ -26,9 +26,7 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 */
 
 
-import java.util.LinkedList;
-import java.util.List;
-import de.mpicbg.scf.InteractiveWatershed.Tree.Node;
+import java.util.Arrays;
 
 public class TreeUtils {
 
@@ -60,25 +58,24 @@ public class TreeUtils {
 			}
 		}
 		else{
-			LinkedList<Node> labelSeeds = getLabelRoots(tree, feature, cut );
+			int[] labelSeeds = getLabelRoots(tree, feature, cut );
 			
 			// set a label for each node
+			nodeIdToLabel = new int[tree.getNumNodes()];
 			if( makeNewLabels ){
 				int label = 1;
-				for(Node node : labelSeeds){
-					node.setDecoration( label );
-					node.labelRoot = node.getId();
+				for(int node : labelSeeds){
+					nodeIdToLabel[node] = label;
 					label++;
 				}
 			}
 			else{ // we the node ID as a label
-				for(Node node : labelSeeds){
-					node.setDecoration( node.getId() );
-					node.labelRoot = node.getId();
+				for(int node : labelSeeds){
+					nodeIdToLabel[node] = node;
 				}
 			}
 			
-			nodeIdToLabel = labelFromSeeds(tree, labelSeeds);
+			labelFromSeeds(tree, labelSeeds, nodeIdToLabel);
 		}
 		
 		return nodeIdToLabel;
@@ -109,20 +106,14 @@ public class TreeUtils {
 		
 		
 		
-		for(Node node : tree.getNodes().values())
-		{
-			
-		}
+		int[] labelSeeds = getLabelRoots(tree, dyn , hMin );
 		
-		
-		LinkedList<Node> labelSeeds = getLabelRoots(tree, dyn , hMin );
-		
-		for(Node node : labelSeeds){
-			node.setDecoration( node.getId() );
-			node.labelRoot = node.getId();
+		nodeIdToLabel = new int[tree.getNumNodes()];
+		for(int node : labelSeeds){
+			nodeIdToLabel[node] = node;
 		}
 		
-		nodeIdToLabel = labelFromSeeds(tree, labelSeeds);
+		labelFromSeeds(tree, labelSeeds, nodeIdToLabel);
 		
 		
 		return nodeIdToLabel;
@@ -137,86 +128,63 @@ public class TreeUtils {
 	 * @param tree : a tree
 	 * @param feature node attributes on which the tree cut is determined
 	 * @param cut any node below that value is merged with its parent
-	 * @return return a list of the most root node for each label right above the cut ()the most root nodes with a child below the cut
+	 * @return return the ids of the most root node for each label right above the cut ()the most root nodes with a child below the cut
 	 */
-	protected static LinkedList<Node> getLabelRoots(Tree tree, double[] feature, double cut ){
+	protected static int[] getLabelRoots(Tree tree, double[] feature, double cut ){
 		
-		// initialize nodes flag and decoration 
-		for(Node node : tree.getNodes().values())
+		// flag the nodes above the cut
+		final int nNodes = tree.getNumNodes();
+		final boolean[] isAboveCut = new boolean[nNodes];
+		for(int node=0; node<nNodes; node++)
 		{
-			node.setFlag( feature[node.getId()]>cut );
-			node.setDecoration(-1);
+			isAboveCut[node] = feature[node]>cut;
 		}
 		
-		LinkedList<Node> Q_toExplore = new LinkedList<Node>();
-		LinkedList<Node> Q_toLabel = new LinkedList<Node>();
+		// sweep the nodes from the roots, a node is explored if it is above the cut and, unless it is a root, 
+		// its parent was explored and all the children of its parent are above the cut
+		final boolean[] exploreChildren = new boolean[nNodes];
+		final int[] Q_toLabel = new int[nNodes];
+		int nToLabel = 0;
 		
-		for( Node node : tree.getRoots() )
+		for( int node : tree.getBreadthFirstOrder() )
 		{
-			if (node.getFlag())
-				Q_toExplore.add(node);
-		}
-		
-		// find the node to label
-		while( ! Q_toExplore.isEmpty() )
-		{
-			final Node node = Q_toExplore.poll();
-			
-			
-			// all leafs need to be labeled
-			List<Node> children = node.getChildren();
-			if ( children.size()==0 )
-			{
-				Q_toLabel.add(node);
+			final int parent = tree.getParent(node);
+			if ( !isAboveCut[node] || ( parent != node && !exploreChildren[parent] ) )
 				continue;
-			}
 			
-			boolean allChildMeetCriteria=true;
-			for( Node child : children)
-			{
-				if ( !child.getFlag() )  // true if child below the cut value
-				{
-					allChildMeetCriteria=false;
-					Q_toLabel.add(node);
-					break;
-				}
-			}
+			// all leafs need to be labeled
+			final int nChildren = tree.getNumChildren(node);
+			boolean allChildMeetCriteria = nChildren>0;
+			for( int k=0; k<nChildren && allChildMeetCriteria; k++)
+				allChildMeetCriteria = isAboveCut[tree.getChild(node, k)];  // false if child below the cut value
 			
 			if( allChildMeetCriteria )
-				for( Node child : children)
-					Q_toExplore.add(child);
-			
+				exploreChildren[node] = true;
+			else
+				Q_toLabel[nToLabel++] = node;
 		}
 		
-		return Q_toLabel;
+		return Arrays.copyOf(Q_toLabel, nToLabel);
 	}
 	
 	
 	/**
-	 * Label all the nodes below the seed according to seed ID	
-	 * @param tree : a tree
-	 * @param labelSeeds list of most root node for each label
-	 * @return an array matching node Id to a label
+	 * Label all the nodes below the seed according to seed label	
+	 * @param tree the tree of the seeds
+	 * @param labelSeeds ids of the most root node for each label
+	 * @param nodeIdToLabel an array matching node Id to a label, containing the label of the seeds 
+	 * 		  and 0 for the other nodes, the offsprings of the seeds receive the label of their seed
 	 */
-	protected static int[] labelFromSeeds(Tree tree, LinkedList<Node> labelSeeds){
-		// label the element of Q_toLabel and their offsprings.  
-		while( !labelSeeds.isEmpty() ){
-			final Node node = labelSeeds.poll();
-			for( Node child : node.getChildren() ){	
-				child.setDecoration( node.getDecoration() );
-				child.labelRoot = node.labelRoot;
-				labelSeeds.add(child);
-			}
+	protected static void labelFromSeeds(Tree tree, int[] labelSeeds, int[] nodeIdToLabel){
+		// label the element of Q_toLabel and their offsprings, the subtree of a seed is a range of the pre-order  
+		final int[] preOrder = tree.getPreOrder();
+		for( int seed : labelSeeds ){
+			final int label = nodeIdToLabel[seed];
+			final int start = tree.getPreOrderIndex(seed);
+			final int end = start + tree.getSubtreeSize(seed);
+			for( int k=start+1; k<end; k++ )
+				nodeIdToLabel[ preOrder[k] ] = label;
 		}
-		
-		int[] nodeIdToLabel = new int[tree.getNumNodes()];
-		for( Node node : tree.getNodes().values() )
-		{
-			if( node.getDecoration()>=0 )
-				nodeIdToLabel[node.getId()] = (int) node.getDecoration();
-			// else 0 by initialization		
-		}
-		return nodeIdToLabel;
 	}
 	
 	
@@ -27,8 +27,13 @@ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSI
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
 
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -40,6 +45,7 @@ import net.imglib2.interpolation.randomaccess.LanczosInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
@@ -116,6 +122,65 @@ public class Utils {
 	}
 	
 	
+	/**
+	 * Wrap a graylevel ImagePlus without copying its pixels, the returned image is a view on the pixels of imp.
+	 * Color images are converted to a float copy of their intensity.
+	 * @param imp an ImagePlus
+	 * @return an image backed by the pixels of imp for 8, 16 and 32 bit images
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T extends RealType<T> & NativeType<T>> Img<T> wrapReal( ImagePlus imp){
+		
+		switch( imp.getType() ){
+		case ImagePlus.GRAY8:
+			return (Img) ImageJFunctions.wrapByte(imp);
+		case ImagePlus.GRAY16:
+			return (Img) ImageJFunctions.wrapShort(imp);
+		case ImagePlus.GRAY32:
+			return (Img) ImageJFunctions.wrapFloat(imp);
+		default:
+			return (Img) ImageJFunctions.convertFloat(imp);
+		}
+	}
+	
+	
+	/**
+	 * Create a mask of the area roi of an ImagePlus. The 2D mask is repeated along the dimensions 
+	 * of interval after the first two, so that it can be used with the image wrapping imp.
+	 * @param imp an ImagePlus
+	 * @param interval the dimensions of the image wrapping imp
+	 * @return a mask of the roi, null if imp has no area roi
+	 */
+	public static RandomAccessibleInterval<BitType> getRoiMask( ImagePlus imp, Interval interval){
+		
+		Roi roi = imp.getRoi();
+		if( roi==null || !roi.isArea() )
+			return null;
+		
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		Img<BitType> mask2D = new ArrayImgFactory<BitType>().create( new long[] {width, height}, new BitType() );
+		RandomAccess<BitType> maskRA = mask2D.randomAccess();
+		
+		final Rectangle bounds = roi.getBounds();
+		final ImageProcessor roiMask = roi.getMask(); // null for a rectangle
+		for( int y=Math.max(0, bounds.y); y<Math.min(height, bounds.y+bounds.height); y++ )
+			for( int x=Math.max(0, bounds.x); x<Math.min(width, bounds.x+bounds.width); x++ )
+			{
+				if( roiMask==null || roiMask.get(x-bounds.x, y-bounds.y)!=0 )
+				{
+					maskRA.setPosition(new long[] {x, y});
+					maskRA.get().set(true);
+				}
+			}
+		
+		RandomAccessibleInterval<BitType> mask = mask2D;
+		for( int d=2; d<interval.numDimensions(); d++)
+			mask = Views.addDimension( mask, interval.min(d), interval.max(d) );
+		return mask;
+	}
+	
+	
 	public static Img<? extends RealType<?>> wrapImagePlus( ImagePlus imp){
 		
 		Img<? extends RealType<?>> img = null;
@@ -154,6 +154,25 @@ public class ImageConnectivity {
 		return n_offset;
 	}
 	
+	// same as getIdxOffsetToCenterPix for images with more than 2^31 pixels
+	public static long[] getLongIdxOffsetToCenterPix(long[][] neigh, long[] dims)
+	{
+		int ndim = dims.length;
+		int npos = neigh.length;
+		
+		long[] mul = new long[ndim];
+		mul[0]=1;
+		for(int j=1; j<ndim; j++)
+			mul[j] = mul[j-1]*dims[j-1];
+		
+		long[] n_offset = new long[npos];
+		for(int i = 0; i< npos; i++)
+			for(int j=0; j<ndim; j++)
+				n_offset[i] += neigh[i][j]*mul[j];
+		
+		return n_offset;
+	}
+	
 	// index displacement relative to previous pixel in the list
 	public static void getRelativeIdxMove(long[] idxMov, long[] dim )
 	{
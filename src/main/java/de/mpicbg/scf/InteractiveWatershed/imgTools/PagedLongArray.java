@@ -0,0 +1,106 @@
+package de.mpicbg.scf.InteractiveWatershed.imgTools;
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.Arrays;
+
+
+
+/**
+ * A long array indexed by long, for data with more than 2^31 elements.
+ * Elements are stored on the heap in pages of 2^20 longs.
+ */
+public class PagedLongArray {
+	
+	private static final int PAGE_BITS = 20;
+	private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+	
+	private final long[][] pages;
+	private final long size;
+	
+	
+	/**
+	 * @param size number of elements
+	 */
+	public PagedLongArray(long size)
+	{
+		this.size = size;
+		final long pageSize = 1L << PAGE_BITS;
+		int nPages = (int) ( (size + pageSize - 1) >>> PAGE_BITS );
+		pages = new long[nPages][];
+		for( int i=0; i<nPages; i++)
+			pages[i] = new long[ (int) Math.min( pageSize, size - ((long)i << PAGE_BITS) ) ];
+	}
+	
+	
+	public long size()
+	{
+		return size;
+	}
+	
+	
+	public long get(long idx)
+	{
+		return pages[ (int)(idx >>> PAGE_BITS) ][ (int)(idx & PAGE_MASK) ];
+	}
+	
+	
+	public void set(long idx, long value)
+	{
+		pages[ (int)(idx >>> PAGE_BITS) ][ (int)(idx & PAGE_MASK) ] = value;
+	}
+	
+	
+	/**
+	 * Binary search of key in the range [fromIndex, toIndex) of the array, which must be sorted, 
+	 * with the same result as {@link Arrays#binarySearch(long[], int, int, long)}
+	 */
+	public long binarySearch(long fromIndex, long toIndex, long key)
+	{
+		long low = fromIndex;
+		long high = toIndex - 1;
+		while( low <= high )
+		{
+			final long mid = (low + high) >>> 1;
+			final long midVal = get(mid);
+			if( midVal < key )
+				low = mid + 1;
+			else if( midVal > key )
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+	
+	
+	public void fill(long value)
+	{
+		for( long[] page : pages )
+			Arrays.fill(page, value);
+	}
+	
+}
@@ -0,0 +1,106 @@
+package de.mpicbg.scf.InteractiveWatershed.imgTools;
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+
+/**
+ * Runs a loop over the pixel indices [0, n) as contiguous chunks processed in parallel on the common ForkJoinPool.
+ * Chunks are contiguous in flat iteration order, a chunk can be processed with a flat cursor moved to its start 
+ * with jumpFwd. With a single core or a small image the loop runs as one chunk in the calling thread.
+ */
+public class ParallelLoop {
+	
+	// minimum number of pixels per chunk, below that the scheduling overhead is not worth it
+	private static final long MIN_CHUNK_SIZE = 1 << 16;
+	
+	public interface Body
+	{
+		/**
+		 * process the pixels [start, end) 
+		 * @param chunk the index of the chunk, chunks are ordered along the pixel indices
+		 */
+		void run(int chunk, long start, long end);
+	}
+	
+	
+	/**
+	 * @param n the number of pixels
+	 * @return the number of chunks used to process n pixels
+	 */
+	public static int getNumChunks(long n)
+	{
+		final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		if( parallelism <= 1 )
+			return 1;
+		return (int) Math.max( 1, Math.min( 4*parallelism, n / MIN_CHUNK_SIZE ) );
+	}
+	
+	
+	/**
+	 * process [0,n) in nChunks chunks of nearly equal size and wait for their completion
+	 */
+	public static void run(final long n, final int nChunks, final Body body)
+	{
+		if( nChunks <= 1 ) {
+			body.run(0, 0, n);
+			return;
+		}
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(nChunks);
+		for( int i=0; i<nChunks; i++)
+		{
+			final int chunk = i;
+			final long start = n * i / nChunks;
+			final long end = n * (i+1) / nChunks;
+			tasks.add( () -> { body.run(chunk, start, end); return null; } );
+		}
+		
+		try {
+			for( Future<Void> future : ForkJoinPool.commonPool().invokeAll(tasks) )
+				future.get();
+		}
+		catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch( ExecutionException e ) {
+			if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException) e.getCause();
+			if( e.getCause() instanceof Error )
+				throw (Error) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+}
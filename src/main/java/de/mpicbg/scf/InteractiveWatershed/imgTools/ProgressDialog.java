@@ -54,6 +54,17 @@ public class ProgressDialog extends JDialog {
 	private final JButton cancelButton = new JButton("Cancel");
 	private static ProgressDialog instance;
 	
+	/**
+	 * a ProgressListener reporting to the dialog, the dialog is shared by all the computations using it
+	 */
+	public static final ProgressListener LISTENER = new ProgressListener() {
+		public void reset() { ProgressDialog.reset(); }
+		public void setStatusText(String text) { ProgressDialog.setStatusText(text); }
+		public void setProgress(double value) { ProgressDialog.setProgress(value); }
+		public boolean wasCancelled() { return ProgressDialog.wasCancelled(); }
+		public void finish() { ProgressDialog.finish(); }
+	};
+	
 	private static double minimumTimeToDecideIfShowDialog = 0.08; //minutes
 	private static double minimumTimeToShowDialog = 1; //minutes
 	
@@ -0,0 +1,79 @@
+package de.mpicbg.scf.InteractiveWatershed.imgTools;
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+/**
+ * Receives the progress of a long computation and tells it whether it should stop.
+ * Computations call setProgress at amortized intervals, NONE can be used when nobody 
+ * is listening, for instance in headless runs.
+ */
+public interface ProgressListener {
+	
+	/**
+	 * a listener ignoring the progress and never cancelling, it has no state and can be shared
+	 */
+	public static final ProgressListener NONE = new ProgressListener() {
+		public void reset() {}
+		public void setStatusText(String text) {}
+		public void setProgress(double value) {}
+		public boolean wasCancelled() { return false; }
+		public void finish() {}
+	};
+	
+	
+	/**
+	 * called when the computation starts
+	 */
+	public void reset();
+	
+	public void setStatusText(String text);
+	
+	/**
+	 * @param value fraction of the computation done, between 0 and 1
+	 */
+	public void setProgress(double value);
+	
+	/**
+	 * @return true if the computation should stop
+	 */
+	public boolean wasCancelled();
+	
+	/**
+	 * called when the computation ends, completed or cancelled
+	 */
+	public void finish();
+	
+	
+	
+	/**
+	 * @return a listener reporting to the ProgressDialog, or NONE when running headless
+	 */
+	public static ProgressListener getDefault()
+	{
+		return ProgressDialog.isHeadless() ? NONE : ProgressDialog.LISTENER;
+	}
+	
+}
@@ -0,0 +1,164 @@
+package de.mpicbg.scf.InteractiveWatershed.imgTools;
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden  
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following 
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer 
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived 
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+
+
+/**
+ * Reads the values of an 8 or 16 bit unsigned image as int, block by block in flat iteration order.
+ * The values of ArrayImg and PlanarImg (such as wrapped ImagePlus) are read directly from their byte[] 
+ * or short[] storage arrays, the values of other images and of views are read with a cursor.
+ */
+public class UnsignedIntegerReader {
+	
+	private final Object[] planes;	// storage arrays in flat iteration order, null if the image is read with a cursor
+	private final int planeSize;
+	private final boolean isByte;
+	private int plane;
+	private int offset;
+	private final Cursor<? extends IntegerType<?>> cursor;
+	
+	
+	/**
+	 * @param img an image for which isSupported is true 
+	 * @param start flat index of the first value to read
+	 */
+	public UnsignedIntegerReader(RandomAccessibleInterval<?> img, long start)
+	{
+		this.isByte = Util.getTypeFromInterval(img) instanceof UnsignedByteType;
+		this.planes = getStorageArrays(img);
+		if( planes != null )
+		{
+			planeSize = isByte ? ((byte[])planes[0]).length : ((short[])planes[0]).length;
+			plane = (int)( start / planeSize );
+			offset = (int)( start % planeSize );
+			cursor = null;
+		}
+		else
+		{
+			planeSize = 0;
+			@SuppressWarnings("unchecked")
+			Cursor<? extends IntegerType<?>> c = Views.flatIterable( (RandomAccessibleInterval<? extends IntegerType<?>>)img ).cursor();
+			c.jumpFwd(start);
+			cursor = c;
+		}
+	}
+	
+	
+	/**
+	 * @return true if img has UnsignedByteType or UnsignedShortType pixels
+	 */
+	public static boolean isSupported(RandomAccessibleInterval<?> img)
+	{
+		final Object type = Util.getTypeFromInterval(img);
+		return type instanceof UnsignedByteType || type instanceof UnsignedShortType;
+	}
+	
+	
+	/**
+	 * @return the number of values of the pixel type of img, 256 or 65536
+	 */
+	public static int getNumValues(RandomAccessibleInterval<?> img)
+	{
+		return Util.getTypeFromInterval(img) instanceof UnsignedByteType ? 256 : 65536;
+	}
+	
+	
+	/**
+	 * read the next n values
+	 * @param values array of at least n elements receiving the values 
+	 * @param n number of values to read
+	 */
+	public void read(int[] values, int n)
+	{
+		if( planes == null )
+		{
+			for( int i=0; i<n; i++)
+				values[i] = cursor.next().getInteger();
+			return;
+		}
+		
+		int i=0;
+		while( i<n )
+		{
+			final int count = Math.min( n-i, planeSize-offset );
+			if( isByte ) {
+				final byte[] data = (byte[]) planes[plane];
+				for( int j=0; j<count; j++)
+					values[i+j] = data[offset+j] & 0xff;
+			}
+			else {
+				final short[] data = (short[]) planes[plane];
+				for( int j=0; j<count; j++)
+					values[i+j] = data[offset+j] & 0xffff;
+			}
+			i += count;
+			offset += count;
+			if( offset == planeSize ) {
+				plane++;
+				offset = 0;
+			}
+		}
+	}
+	
+	
+	// the storage arrays of an ArrayImg or a PlanarImg, null for the other images
+	private static Object[] getStorageArrays(RandomAccessibleInterval<?> img)
+	{
+		if( img instanceof ArrayImg )
+		{
+			final Object access = ((ArrayImg<?,?>)img).update(null);
+			if( access instanceof ArrayDataAccess )
+				return new Object[] { ((ArrayDataAccess<?>)access).getCurrentStorageArray() };
+		}
+		else if( img instanceof PlanarImg )
+		{
+			final PlanarImg<?,?> planarImg = (PlanarImg<?,?>)img;
+			final Object[] planes = new Object[ planarImg.numSlices() ];
+			for( int i=0; i<planes.length; i++)
+			{
+				final Object access = planarImg.getPlane(i);
+				if( !(access instanceof ArrayDataAccess) )
+					return null;
+				planes[i] = ((ArrayDataAccess<?>)access).getCurrentStorageArray();
+			}
+			return planes;
+		}
+		return null;
+	}
+	
+}
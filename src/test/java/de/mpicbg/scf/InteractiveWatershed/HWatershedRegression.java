@@ -0,0 +1,218 @@
+package de.mpicbg.scf.InteractiveWatershed;
+
+/*
+Author: Benoit Lombardot, Scientific Computing Facility, MPI-CBG, Dresden
+
+Copyright 2017 Max Planck Institute of Molecular Cell Biology and Genetics, Dresden, Germany
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following
+conditions are met:
+
+1 - Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+
+2 - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer
+in the documentation and/or other materials provided with the distribution.
+
+3 - Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived
+from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+
+
+/**
+ * Regression check of the tree construction and of the label maps against the output of the original
+ * implementation, on 2D and 3D images of 8, 16 and 32 bit stored as ArrayImg and CellImg.
+ * The expected signatures were produced by this class compiled against the original implementation.
+ * The 32 bit images hold integer values over a wide range, the original implementation truncated the values to int.
+ * A slice of the label map is checked against the full label map instead: the original implementation mixed
+ * up the pixel order of the slices of CellImg inputs.
+ * Run main without argument to check, with "print" to print the signatures of the current implementation.
+ * It only uses the public API of the original implementation so that it can be compiled against it.
+ */
+public class HWatershedRegression {
+
+	// one signature per case, in the order of the cases of main
+	private static final String[] EXPECTED = {
+		"n=1058 tree=6fe80b815547690 map=c0d20bccf15ebd7f 434:4ed6817a59485f36 408:9eb2298d3189628d 245:a825c86d8985ed82 30:997318ac1c863085 242:819ec36fb8d105da 27:7e844b958cc29962", // 2D 8 bit ArrayImg
+		"n=1214 tree=386fc67f97305f86 map=6834fb2de2d50603 523:7bf6e13f465e36c1 501:7807530c40e08c01 275:d130fd70533a89a7 27:fbcfbaab7ce995b9 274:99646bbf3184869 26:e88ed3f5f971884a", // 2D 8 bit CellImg
+		"n=1198 tree=ef9ba585a3c407b0 map=6b88995d4c4e5219 506:856c70a1a5afe2d 481:5e37469b8f107a1a 281:61926631d4475aad 20:a48f4322b510aa4 280:e25dd1cb61745cc8 20:916a1871b5135e7f", // 2D 16 bit ArrayImg
+		"n=1210 tree=c07ec499517a1ab6 map=64d5bd77a2b70d8a 517:ab13045cfb52df16 493:86201494a2a6a1ef 277:9f87751625538e41 28:22fa16f0ddcdc02d 279:47fea8e565ee82a0 26:58039d6c791fd31a", // 2D 16 bit CellImg
+		"n=1230 tree=c202ec19415918b8 map=56cb41303e278d3f 510:4a0739f085c1681f 473:2091e4e3f9ebe36f 249:81d62cb5f5aea9e5 15:9ddfc0dbacff661 248:48b924a77b21373a 14:6c19a9cc3aa41f05", // 2D 32 bit ArrayImg
+		"n=1122 tree=4af2f11a384ba92e map=976fd9a405f6a903 478:4f169851f43b9472 454:83e795e3961685ad 261:9341cf3bdd8d36a5 34:cfccc7d9f912c16c 260:fa5cffe7e7dd7d5c 33:850d22234db9611d", // 2D 32 bit CellImg
+		"n=340 tree=8e36cfdca5d7bb22 map=b71c56ad4228f0e9 147:14e80f9dd3828ec8 103:f91490ae8f429fff 138:6aac29e5cc707c41 10:82f526b78a1fb6 135:dbac20683f8ca72f 9:2a104d0485e95aa", // 3D 8 bit ArrayImg
+		"n=518 tree=b3160d32ffd307a map=7a2954c938bf2d75 226:56fa58889e2df9af 171:ef1da720cdd671a4 199:5c022b5e88e0e3e1 13:1489b8d9c77ad97c 197:ac595c26c6053785 12:44302261a7fe9ea6", // 3D 8 bit CellImg
+		"n=498 tree=b77f883588db50af map=bf7ed09853598e82 223:c02b609194774e2 166:a4c87d148d86331a 189:733c8e42df38ab53 14:906c91ce42bb3ac1 188:333827d53576c1dd 13:4610bc6afa0b4054", // 3D 16 bit ArrayImg
+		"n=654 tree=2d4ecb046f683fec map=2ea561119a9fa84a 280:8216e4f2d1d6d082 215:e6072a28ae492446 232:4d170e8c670458d2 12:dd7026e2718c49b9 228:458696a0c0813c53 8:8d65cf7edaf47ba7", // 3D 16 bit CellImg
+		"n=508 tree=c80d73e43bd905c3 map=ed48e699ea7fc3d5 221:2b0c03a4480f3fab 167:ff1595d0b468995c 189:85d76cb193feedb3 14:b72196c9ef835450 187:be98a3ee7714bb69 12:7ac568eaa749e69c", // 3D 32 bit ArrayImg
+		"n=708 tree=d987178c2db7688b map=5b98003fa46ac6bd 314:7ba75c670b9e80dd 241:c86fd398eb88045c 250:7bed53689f5e93bd 10:6e4a337d15d63a6b 248:ae1e6ab7f23fd5af 10:903959a7db934a2b"  // 3D 32 bit CellImg
+	};
+
+
+	public static void main(String[] args)
+	{
+		final boolean print = args.length > 0 && args[0].equals("print");
+		int nCases = 0;
+		int nFailed = 0;
+		for( int nDims=2; nDims<=3; nDims++)
+			for( int bits : new int[] {8, 16, 32} )
+				for( boolean cell : new boolean[] {false, true} )
+				{
+					final String name = nDims+"D "+bits+" bit "+(cell ? "CellImg" : "ArrayImg");
+					final Img<UnsignedByteType> img8 = bits == 8 ? createImage(new UnsignedByteType(), nDims, cell, 255, nCases) : null;
+					final Img<UnsignedShortType> img16 = bits == 16 ? createImage(new UnsignedShortType(), nDims, cell, 4000, nCases) : null;
+					final Img<FloatType> img32 = bits == 32 ? createImage(new FloatType(), nDims, cell, 100000, nCases) : null;
+					final String signature = img8 != null ? signature(img8) : img16 != null ? signature(img16) : signature(img32);
+
+					if( print )
+						System.out.println("\t\t\""+signature+"\", // "+name);
+					else if( nCases >= EXPECTED.length || !EXPECTED[nCases].equals(signature) ) {
+						System.out.println("FAILED "+name+": "+signature);
+						nFailed++;
+					}
+					else if( !( img8 != null ? checkSlice(img8) : img16 != null ? checkSlice(img16) : checkSlice(img32) ) ) {
+						System.out.println("FAILED "+name+": the slice differs from the full label map");
+						nFailed++;
+					}
+					nCases++;
+				}
+
+		if( print )
+			return;
+		System.out.println( nCases+" cases, "+nFailed+" failed" );
+		if( nFailed > 0 )
+			System.exit(1);
+	}
+
+
+	// a few gaussian blobs of random height and width plus noise, integer values in [0, range]
+	private static <T extends RealType<T> & NativeType<T>> Img<T> createImage(T type, int nDims, boolean cell, double range, long seed)
+	{
+		final long[] dims = nDims == 2 ? new long[] {96, 80} : new long[] {40, 36, 24};
+		final Img<T> img = cell ? new CellImgFactory<T>(type, 16).create(dims) : new ArrayImgFactory<T>(type).create(dims);
+
+		final Random random = new Random(seed);
+		final int nBlobs = 12;
+		final double[][] centers = new double[nBlobs][nDims];
+		final double[] heights = new double[nBlobs];
+		final double[] sigmas = new double[nBlobs];
+		for( int b=0; b<nBlobs; b++)
+		{
+			for( int d=0; d<nDims; d++)
+				centers[b][d] = random.nextDouble() * dims[d];
+			heights[b] = 0.3 + 0.5 * random.nextDouble();
+			sigmas[b] = 2 + 4 * random.nextDouble();
+		}
+
+		final Cursor<T> cursor = Views.flatIterable(img).cursor();
+		final long[] pos = new long[nDims];
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize(pos);
+			double val = 0.1 * random.nextDouble();
+			for( int b=0; b<nBlobs; b++)
+			{
+				double dist2 = 0;
+				for( int d=0; d<nDims; d++)
+					dist2 += (pos[d]-centers[b][d]) * (pos[d]-centers[b][d]);
+				val += heights[b] * Math.exp( -dist2 / (2*sigmas[b]*sigmas[b]) );
+			}
+			val = Math.min(1, val) * range;
+			cursor.get().setReal( Math.floor(val) );
+		}
+		return img;
+	}
+
+
+	// hashes of the tree, of the label map of the tree and of label maps for a few parameters
+	private static <T extends RealType<T>> String signature(Img<T> img)
+	{
+		double range = 0;
+		for( T t : img )
+			range = Math.max(range, t.getRealDouble());
+
+		final HWatershedLabeling<T> hWatershed = new HWatershedLabeling<T>(img, Float.NEGATIVE_INFINITY, HWatershedLabeling.Connectivity.FACE);
+		final Tree tree = hWatershed.getTree();
+		final Img<IntType> labelMap = hWatershed.getLabelMapMaxTree();
+
+		long treeHash = 0;
+		for( int parent : tree.getParentsAsArray() )
+			treeHash = 31 * treeHash + parent;
+		for( String feature : new String[] {"dynamics", "Imax"} )
+			for( double value : tree.getFeature(feature) )
+				treeHash = 31 * treeHash + Double.doubleToLongBits(value);
+
+		final StringBuilder signature = new StringBuilder();
+		signature.append("n=").append(tree.getNumNodes());
+		signature.append(" tree=").append(Long.toHexString(treeHash));
+		signature.append(" map=").append(Long.toHexString(hash(labelMap)));
+
+		final SegmentHierarchyToLabelMap<T> labeler = new SegmentHierarchyToLabelMap<T>(tree, labelMap, img);
+		for( float hMin : new float[] {0.02f, 0.1f, 0.3f} )
+			for( float threshold : new float[] {0, 0.2f} )
+			{
+				final Img<IntType> out = labeler.getLabelMap( (float)(hMin*range), (float)(threshold*range), 60, true);
+				signature.append(' ').append(labeler.getNLabels()).append(':').append(Long.toHexString(hash(out)));
+			}
+
+		return signature.toString();
+	}
+
+
+	// a slice of the label map along dimension 1 must be the same slice of the full label map
+	private static <T extends RealType<T>> boolean checkSlice(Img<T> img)
+	{
+		double range = 0;
+		for( T t : img )
+			range = Math.max(range, t.getRealDouble());
+
+		final HWatershedLabeling<T> hWatershed = new HWatershedLabeling<T>(img, Float.NEGATIVE_INFINITY, HWatershedLabeling.Connectivity.FACE);
+		final Tree tree = hWatershed.getTree();
+		final SegmentHierarchyToLabelMap<T> labeler = new SegmentHierarchyToLabelMap<T>(tree, hWatershed.getLabelMapMaxTree(), img);
+		final float hMin = (float)(0.1*range);
+		final float threshold = (float)(0.2*range);
+		final Img<IntType> full = labeler.getLabelMap( hMin, threshold, 100, false);
+		final Img<IntType> slice = labeler.getLabelMap( hMin, threshold, 100, false, 1, 10);
+		final RandomAccessibleInterval<IntType> expected = img.numDimensions() > 2 ? Views.hyperSlice(full, 1, 10) : full;
+
+		final Cursor<IntType> c1 = Views.flatIterable(expected).cursor();
+		final Cursor<IntType> c2 = Views.flatIterable(slice).cursor();
+		while( c1.hasNext() )
+			if( c1.next().get() != c2.next().get() )
+				return false;
+		return true;
+	}
+
+
+	private static long hash(Img<IntType> img)
+	{
+		long hash = 0;
+		for( IntType t : Views.flatIterable(img) )
+			hash = 31 * hash + t.get();
+		return hash;
+	}
+
+}